@@ -0,0 +1,97 @@
+package com.googlesource.gerrit.plugins.moduleowner;
+
+import com.google.gerrit.extensions.events.AccountIndexedListener;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.server.account.AccountCache;
+import com.google.gerrit.server.account.AccountState;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Whether module owners can be added as reviewers, that is whether their
+ * account is active and not dormant.
+ *
+ * The users of a config are added when its snapshot is built, the members of
+ * owner groups when they are first seen. Accounts already in the index are
+ * updated when they are reindexed, so that checking a candidate is a map
+ * lookup; other reindexed accounts are ignored, so that the index only
+ * holds module owners.
+ */
+@Singleton
+class ActiveOwnerIndex implements AccountIndexedListener {
+    private static final Logger log = LoggerFactory.getLogger(ActiveOwnerIndex.class);
+
+    static final String DORMANT_STATUS = "dormant";
+
+    private final AccountCache accountCache;
+    private final ConcurrentMap<Account.Id, Boolean> active = new ConcurrentHashMap<>();
+
+    /**
+     * Number of reindexed accounts, to detect a reindex racing a first load.
+     */
+    private final AtomicLong reindexed = new AtomicLong();
+
+    @Inject
+    ActiveOwnerIndex(AccountCache accountCache) {
+        this.accountCache = accountCache;
+    }
+
+    /**
+     * @param accounts owners to index if they are not yet
+     */
+    void addAll(Collection<Account.Id> accounts) {
+        for (Account.Id account : accounts) {
+            isActive(account);
+        }
+    }
+
+    /**
+     * @param account owner to check
+     * @return true if the account is active and not dormant
+     */
+    boolean isActive(Account.Id account) {
+        Boolean result = active.get(account);
+        if (result == null) {
+            long seen = reindexed.get();
+            result = load(account);
+            Boolean existing = active.putIfAbsent(account, result);
+            if (existing != null) {
+                return existing;
+            }
+            if (reindexed.get() != seen) {
+                // an account, maybe this one, was reindexed while loading
+                active.remove(account, result);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void onAccountIndexed(int id) {
+        reindexed.incrementAndGet();
+        Account.Id account = new Account.Id(id);
+        if (active.containsKey(account)) {
+            active.replace(account, load(account));
+        }
+    }
+
+    private boolean load(Account.Id id) {
+        AccountState state = accountCache.get(id);
+        Account account = state != null ? state.getAccount() : null;
+        if (account == null || !account.isActive()) {
+            return false;
+        }
+        if (DORMANT_STATUS.equals(account.getStatus())) {
+            log.debug("skipping inactive user: {}", account.getFullName());
+            return false;
+        }
+        return true;
+    }
+}
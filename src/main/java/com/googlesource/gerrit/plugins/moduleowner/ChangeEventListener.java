@@ -2,6 +2,7 @@ package com.googlesource.gerrit.plugins.moduleowner;
 
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.CheckedFuture;
 import com.google.gerrit.common.EventListener;
 import com.google.gerrit.common.TimeUtil;
@@ -13,150 +14,168 @@ import com.google.gerrit.reviewdb.client.PatchSet;
 import com.google.gerrit.reviewdb.client.PatchSetApproval;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.reviewdb.server.ReviewDb;
-import com.google.gerrit.server.CurrentUser;
-import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.account.AccountCache;
 import com.google.gerrit.server.account.AccountResolver;
+import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.gerrit.server.events.ChangeEvent;
 import com.google.gerrit.server.events.CommentAddedEvent;
 import com.google.gerrit.server.events.DraftPublishedEvent;
 import com.google.gerrit.server.events.Event;
 import com.google.gerrit.server.events.PatchSetCreatedEvent;
 import com.google.gerrit.server.events.PatchSetEvent;
 import com.google.gerrit.server.git.GitRepositoryManager;
-import com.google.gerrit.server.git.WorkQueue;
 import com.google.gerrit.server.index.change.ChangeIndexer;
 import com.google.gerrit.server.project.ProjectCache;
 import com.google.gerrit.server.project.ProjectState;
-import com.google.gerrit.server.util.RequestContext;
-import com.google.gerrit.server.util.ThreadLocalRequestContext;
 import com.google.gwtorm.server.OrmException;
 import com.google.gwtorm.server.SchemaFactory;
 import com.google.inject.Inject;
-import com.google.inject.Provider;
-import com.google.inject.ProvisionException;
 import org.eclipse.jgit.errors.RepositoryNotFoundException;
-import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
-import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.revwalk.RevWalk;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import static com.googlesource.gerrit.plugins.moduleowner.ModuleOwnerConfig.CODE_REVIEW_LABEL;
 import static com.googlesource.gerrit.plugins.moduleowner.ModuleOwnerConfig.MODULE_OWNER_LABEL;
 
 /**
  * Listener for change events, specifically patch set created events.
+ *
+ * Events are handled on the {@link ChangeEventQueue}, in order for each
+ * change.
  */
 class ChangeEventListener implements EventListener {
     private static final Logger log = LoggerFactory
             .getLogger(ChangeEventListener.class);
 
-    private final GitRepositoryManager repoManager;
-    private final WorkQueue workQueue;
+    private static final String CONFIG_LABEL_SYNC_DELAY = "labelSyncDelay";
+    private static final long DEFAULT_LABEL_SYNC_DELAY = TimeUnit.SECONDS.toMillis(2);
 
-    private final IdentifiedUser.GenericFactory userFactory;
+    private final GitRepositoryManager repoManager;
     private final ReviewersByOwnership.Factory reviewersFactory;
 
     private final ChangeIndexer indexer;
-    private final ThreadLocalRequestContext tl;
     private final SchemaFactory<ReviewDb> schemaFactory;
     private final AccountCache accountCache;
     private final AccountResolver accountResolver;
 
     private final ModuleOwnerConfigCache moduleOwnerConfigCache;
+    private final ModuleOwnerEvaluator evaluator;
     private final ProjectCache projectCache;
-    private ReviewDb db;
+    private final ChangeEventQueue eventQueue;
+    private final ReviewerQueue reviewerQueue;
+    private final ChangedFilesCache changedFiles;
+    private final long labelSyncDelay;
 
     @Inject
     ChangeEventListener(
             final GitRepositoryManager repoManager,
-            final WorkQueue workQueue,
-            final IdentifiedUser.GenericFactory userFactory,
             final ChangeIndexer indexer,
-            final ThreadLocalRequestContext tl,
             final AccountCache accountCache,
             final AccountResolver accountResolver,
             final SchemaFactory<ReviewDb> schemaFactory,
             final ModuleOwnerConfigCache moduleOwnerConfigCache,
+            final ModuleOwnerEvaluator evaluator,
             final ProjectCache projectCache,
+            final ChangeEventQueue eventQueue,
+            final ReviewerQueue reviewerQueue,
+            final ChangedFilesCache changedFiles,
+            final PluginConfigFactory configFactory,
             final ReviewersByOwnership.Factory reviewersFactory) {
         this.repoManager = repoManager;
-        this.workQueue = workQueue;
-        this.userFactory = userFactory;
         this.accountCache = accountCache;
         this.accountResolver = accountResolver;
         this.indexer = indexer;
-        this.tl = tl;
         this.schemaFactory = schemaFactory;
         this.moduleOwnerConfigCache = moduleOwnerConfigCache;
+        this.evaluator = evaluator;
         this.reviewersFactory = reviewersFactory;
         this.projectCache = projectCache;
+        this.eventQueue = eventQueue;
+        this.reviewerQueue = reviewerQueue;
+        this.changedFiles = changedFiles;
+
+        String delay = configFactory.getFromGerritConfig(ModuleOwnerConfig.PLUGIN_NAME)
+                .getString(CONFIG_LABEL_SYNC_DELAY);
+        this.labelSyncDelay = delay != null
+                ? ConfigUtil.getTimeUnit(delay, DEFAULT_LABEL_SYNC_DELAY, TimeUnit.MILLISECONDS)
+                : DEFAULT_LABEL_SYNC_DELAY;
     }
 
     @Override
     public void onEvent(Event event) {
         //FIXME skip changes on refs/meta/config
 
-        if (event instanceof PatchSetCreatedEvent) {
-            // New patch set available, automatically add module owners as reviewers
-            PatchSetCreatedEvent psEvent = (PatchSetCreatedEvent) event;
+        if (!(event instanceof PatchSetCreatedEvent)
+                && !(event instanceof DraftPublishedEvent)
+                && !(event instanceof CommentAddedEvent)) {
+            // dropping event
+            return;
+        }
+        final PatchSetEvent psEvent = (PatchSetEvent) event;
+        eventQueue.submit(changeKey(psEvent), new Runnable() {
+            @Override
+            public void run() {
+                handle(psEvent);
+            }
 
-            // Don't assign reviewers to drafts
-            if (!psEvent.patchSet.get().isDraft) {
-                addReviewers(psEvent);
-                updateLabels(psEvent);
+            @Override
+            public String toString() {
+                return "Module owners of " + psEvent.getType() + " on change "
+                        + changeKey(psEvent);
             }
-        } else if (event instanceof DraftPublishedEvent) {
-            addReviewers((PatchSetEvent) event);
-            updateLabels((PatchSetEvent) event);
-        } else if (event instanceof CommentAddedEvent) {
-            // New review available, add owner label if appropriate
-            updateLabels((CommentAddedEvent) event);
-        }
-        // else, dropping event
+        });
     }
 
-    private void addReviewers(final PatchSetEvent event) {
-        ModuleOwnerConfig config = moduleOwnerConfigCache.get(event.getProjectNameKey());
-        if (config == null || !config.isEnabled() || config.getMaxReviewers() <= 0) {
-            return;
-        }
-
-        Project.NameKey projectName = event.getProjectNameKey();
-        try (Repository repo = repoManager.openRepository(projectName);
-             ReviewDb reviewDb = schemaFactory.open()) {
+    private static String changeKey(ChangeEvent event) {
+        return event.getProjectNameKey().get() + "~" + event.getRefName()
+                + "~" + event.getChangeKey().get();
+    }
 
+    private void handle(PatchSetEvent event) {
+        if (event instanceof PatchSetCreatedEvent) {
+            // New patch set available, automatically add module owners as reviewers
 
-            Change.Id changeId = new Change.Id(event.change.get().number);
-            final Change change = reviewDb.changes().get(changeId);
-            if (change == null) {
-                log.warn("Change {} not found.", changeId.get());
-                return;
+            // Don't assign reviewers to drafts
+            if (!event.patchSet.get().isDraft) {
+                handle(event, true);
             }
+        } else if (event instanceof DraftPublishedEvent) {
+            handle(event, true);
+        } else if (event instanceof CommentAddedEvent) {
+            // New review available, add owner label if appropriate; the labels
+            // are synced once for the reviews posted within labelSyncDelay
+            final PatchSetEvent latest = event;
+            eventQueue.submitCoalesced(
+                    changeKey(event), changeKey(event) + "," + event.patchSet.get().number,
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            handle(latest, false);
+                        }
 
-            final RevWalk rw = new RevWalk(repo);
-            final RevCommit commit =
-                    rw.parseCommit(ObjectId.fromString(event.patchSet.get().revision));
-
-            //TODO consider moving to RequestScopePropagator
-            runTaskOnWorkQueue(reviewersFactory.create(projectName, commit, change, repo),
-                               change);
-
-        } catch (RepositoryNotFoundException e) {
-            log.error("Repo not found: {}", projectName.get(), e);
-        } catch (IOException e) {
-            log.error("IO Exception trying to get repo: {}", projectName.get(), e);
-        } catch (OrmException e) {
-            log.error("OrmException while adding reviewers for: {}", projectName.get(), e);
+                        @Override
+                        public String toString() {
+                            return "Module owner labels of change " + changeKey(latest);
+                        }
+                    }, labelSyncDelay);
         }
     }
 
-    private void updateLabels(final PatchSetEvent event) {
+    /**
+     * Loads the change once and then adds the module owners as reviewers, if
+     * requested, and syncs the Module-Owner label.
+     */
+    private void handle(PatchSetEvent event, boolean addReviewers) {
         Project.NameKey projectName = event.getProjectNameKey();
         ModuleOwnerConfig config = moduleOwnerConfigCache.get(projectName);
         if (config == null || !config.isEnabled()) {
@@ -165,36 +184,32 @@ class ChangeEventListener implements EventListener {
 
         try (Repository repo = repoManager.openRepository(projectName);
              ReviewDb reviewDb = schemaFactory.open()) {
-            Change.Id changeId = new Change.Id(event.change.get().number);
-            final Change change = reviewDb.changes().get(changeId);
-            if (change == null) {
-                log.warn("Change {} not found.", changeId.get());
+            EventContext context =
+                    EventContext.load(event, config, reviewDb, repo, changedFiles);
+            if (context == null) {
                 return;
             }
-
-            PatchSet.Id psId = new PatchSet.Id(changeId, event.patchSet.get().number);
-            PatchSet patchSet = reviewDb.patchSets().get(psId);
-            if (patchSet == null) {
-                log.warn("Patch set " + psId.get() + " not found.");
-                return;
+            if (addReviewers && config.getMaxReviewers() > 0) {
+                addReviewers(context);
             }
-
-            final RevWalk rw = new RevWalk(repo);
-            final RevCommit commit =
-                    rw.parseCommit(ObjectId.fromString(event.patchSet.get().revision));
-
-            syncModuleOwnerLabel(projectName, change, psId, commit,
-                                 config, reviewDb, repo);
+            syncModuleOwnerLabel(projectName, context, reviewDb);
+        } catch (RepositoryNotFoundException e) {
+            log.error("Repo not found: {}", projectName.get(), e);
         } catch (OrmException | IOException e) {
-            log.error("Exception while updating labels for change: {} in project: {}",
-                      event.change.get().id, event.getProjectNameKey().get(), e);
+            log.error("Exception while handling event for change: {} in project: {}",
+                      event.change.get().id, projectName.get(), e);
         }
     }
 
-    private void syncModuleOwnerLabel(Project.NameKey projectName,
-                                      Change change, PatchSet.Id psId, RevCommit commit,
-                                      ModuleOwnerConfig config,
-                                      ReviewDb reviewDb, Repository repo)
+    private void addReviewers(EventContext context) {
+        Change change = context.getChange();
+        reviewerQueue.submit(
+                reviewersFactory.create(context.getConfig(), change, context.getChangedFiles()),
+                change);
+    }
+
+    private void syncModuleOwnerLabel(Project.NameKey projectName, EventContext context,
+                                      ReviewDb reviewDb)
             throws OrmException, IOException {
         // FIXME run in the background???
         ProjectState projectState = projectCache.get(projectName);
@@ -205,8 +220,15 @@ class ChangeEventListener implements EventListener {
             return;
         }
 
-        List<PatchSetApproval> existingApprovals =
-                reviewDb.patchSetApprovals().byChange(change.getId()).toList();
+        Change change = context.getChange();
+        PatchSet.Id psId = context.getPatchSet().getId();
+        if (!psId.equals(change.currentPatchSetId())) {
+            // the change is loaded when the event is handled; a delayed sync
+            // can run after a newer patch set, whose own events sync it
+            log.debug("Skipping label sync of outdated patch set {}", psId);
+            return;
+        }
+        List<PatchSetApproval> existingApprovals = context.getApprovals();
         Multimap<Account.Id, PatchSetApproval> approvals = ArrayListMultimap.create();
         for (PatchSetApproval approval : existingApprovals) {
             //FIXME is this right?
@@ -220,26 +242,34 @@ class ChangeEventListener implements EventListener {
             approvals.put(approval.getAccountId(), approval);
         }
 
+        // Check the ownership of all accounts whose approvals are out of sync at once
+        Set<Account.Id> accountsToCheck = Sets.newHashSet();
         for (Account.Id account : approvals.keySet()) {
-            PatchSetApproval existingModuleOwnerApproval = null;
-            PatchSetApproval existingCodeReviewApproval = null;
-            for (PatchSetApproval approval : approvals.get(account)) {
-                if (CODE_REVIEW_LABEL.equals(approval.getLabel())) {
-                    existingCodeReviewApproval = approval;
-                } else if (MODULE_OWNER_LABEL.equals(approval.getLabel())) {
-                    existingModuleOwnerApproval = approval;
-                }
+            if (!isInSync(approvals.get(account))) {
+                accountsToCheck.add(account);
             }
+        }
+        if (accountsToCheck.isEmpty()) {
+            // all approvals are in sync, no need for the changed files
+            return;
+        }
+        Map<Account.Id, Boolean> moduleOwners =
+                evaluator.getModuleOwnership(context.getConfig(), accountsToCheck,
+                                             context.getChangedFiles());
+
+        for (Account.Id account : approvals.keySet()) {
+            PatchSetApproval existingModuleOwnerApproval =
+                    getApproval(approvals.get(account), MODULE_OWNER_LABEL);
+            PatchSetApproval existingCodeReviewApproval =
+                    getApproval(approvals.get(account), CODE_REVIEW_LABEL);
 
             // Note: this is an optimization that bypasses isModuleOwner check
-            if (existingCodeReviewApproval != null &&
-                    existingModuleOwnerApproval != null &&
-                    existingCodeReviewApproval.getValue() == existingModuleOwnerApproval.getValue()) {
+            if (!accountsToCheck.contains(account)) {
                 // If the MO and CR approvals match, we can skip the remaining...
                 continue;
             }
 
-            if (config.isModuleOwner(account, repo, commit)) {
+            if (moduleOwners.get(account)) {
                 if (existingCodeReviewApproval != null && existingModuleOwnerApproval != null) {
                     if (existingCodeReviewApproval.getValue() != existingModuleOwnerApproval.getValue()) {
                         // Update module owner approval
@@ -295,6 +325,26 @@ class ChangeEventListener implements EventListener {
         }
     }
 
+    private static PatchSetApproval getApproval(Collection<PatchSetApproval> approvals,
+                                                String label) {
+        for (PatchSetApproval approval : approvals) {
+            if (label.equals(approval.getLabel())) {
+                return approval;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the account's module owner and code review approvals match
+     */
+    private static boolean isInSync(Collection<PatchSetApproval> approvals) {
+        PatchSetApproval moduleOwnerApproval = getApproval(approvals, MODULE_OWNER_LABEL);
+        PatchSetApproval codeReviewApproval = getApproval(approvals, CODE_REVIEW_LABEL);
+        return codeReviewApproval != null && moduleOwnerApproval != null
+                && codeReviewApproval.getValue() == moduleOwnerApproval.getValue();
+    }
+
     private enum ChangeType {
         INSERT {
             @Override
@@ -340,45 +390,4 @@ class ChangeEventListener implements EventListener {
         CheckedFuture<?, IOException> indexWrite = indexer.indexAsync(project, changeId);
         indexWrite.checkedGet();
     }
-
-    private void runTaskOnWorkQueue(final Runnable task, final Change change) {
-        workQueue.getDefaultQueue().submit(new Runnable() {
-            @Override
-            public void run() {
-            RequestContext old = tl.setContext(new RequestContext() {
-
-                @Override
-                public CurrentUser getUser() {
-                    return userFactory.create(change.getOwner());
-                }
-
-                @Override
-                public Provider<ReviewDb> getReviewDbProvider() {
-                    return new Provider<ReviewDb>() {
-                        @Override
-                        public ReviewDb get() {
-                        if (db == null) {
-                            try {
-                                db = schemaFactory.open();
-                            } catch (OrmException e) {
-                                throw new ProvisionException("Cannot open ReviewDb", e);
-                            }
-                        }
-                        return db;
-                        }
-                    };
-                }
-            });
-            try {
-                task.run();
-            } finally {
-                tl.setContext(old);
-                if (db != null) {
-                    db.close();
-                    db = null;
-                }
-            }
-            }
-        });
-    }
 }
@@ -0,0 +1,258 @@
+package com.googlesource.gerrit.plugins.moduleowner;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.Maps;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the handling of change events off the event dispatch thread.
+ *
+ * Tasks of the same change run one after the other in the order they were
+ * submitted, tasks of different changes run in parallel on a queue sized
+ * with {@code plugin.moduleowner.eventThreads}. With {@code 0} or less,
+ * events are handled by the thread dispatching them.
+ *
+ * Tasks can also be delayed and coalesced, so that a burst of events that
+ * need the same work runs it once.
+ */
+@Singleton
+class ChangeEventQueue implements LifecycleListener {
+    private static final Logger log = LoggerFactory.getLogger(ChangeEventQueue.class);
+
+    private static final String CONFIG_EVENT_THREADS = "eventThreads";
+    private static final int DEFAULT_EVENT_THREADS = 2;
+
+    private final WorkQueue workQueue;
+    private final int threads;
+
+    /**
+     * Tasks waiting for the running task of their change; a change has an
+     * entry while one of its tasks is queued or running.
+     */
+    private final Map<String, Deque<Runnable>> pending = Maps.newHashMap();
+    private final AtomicInteger depth = new AtomicInteger();
+
+    /**
+     * Latest delayed task of each coalescing key, until it is queued.
+     */
+    private final ConcurrentMap<String, Runnable> delayed = new ConcurrentHashMap<>();
+    private final Counter0 coalesced;
+
+    private volatile WorkQueue.Executor executor;
+
+    @Inject
+    ChangeEventQueue(WorkQueue workQueue,
+                     PluginConfigFactory configFactory,
+                     MetricMaker metricMaker) {
+        this.workQueue = workQueue;
+        this.threads = configFactory.getFromGerritConfig(ModuleOwnerConfig.PLUGIN_NAME)
+                .getInt(CONFIG_EVENT_THREADS, DEFAULT_EVENT_THREADS);
+
+        metricMaker.newCallbackMetric("events/queue_depth", Integer.class,
+                new Description("Change events queued or being handled")
+                        .setGauge()
+                        .setUnit("events"),
+                new Supplier<Integer>() {
+                    @Override
+                    public Integer get() {
+                        return depth.get();
+                    }
+                });
+        metricMaker.newCallbackMetric("events/delayed", Integer.class,
+                new Description("Change events waiting for more events to coalesce with")
+                        .setGauge()
+                        .setUnit("events"),
+                new Supplier<Integer>() {
+                    @Override
+                    public Integer get() {
+                        return delayed.size();
+                    }
+                });
+        this.coalesced = metricMaker.newCounter("events/coalesced",
+                new Description("Change events replaced by a later event of the same key")
+                        .setCumulative()
+                        .setRate()
+                        .setUnit("events"));
+    }
+
+    @Override
+    public void start() {
+        if (threads > 0) {
+            executor = workQueue.createQueue(threads, "ModuleOwner-Events");
+        }
+    }
+
+    @Override
+    public void stop() {
+        WorkQueue.Executor e = executor;
+        executor = null;
+        if (e != null) {
+            e.unregisterWorkQueue();
+            e.shutdownNow();
+        }
+        synchronized (pending) {
+            pending.clear();
+        }
+        delayed.clear();
+    }
+
+    /**
+     * Queues a task after the tasks already queued for the same change.
+     *
+     * @param change key of the change the task belongs to
+     * @param task task to run
+     */
+    void submit(String change, Runnable task) {
+        depth.incrementAndGet();
+        synchronized (pending) {
+            Deque<Runnable> tasks = pending.get(change);
+            if (tasks != null) {
+                tasks.add(task);
+                return;
+            }
+            pending.put(change, new ArrayDeque<Runnable>());
+        }
+        execute(new ChangeTask(change, task));
+    }
+
+    /**
+     * Queues a task of a change after a delay. Tasks submitted with the same
+     * key during the delay replace it, so that only the latest one runs.
+     *
+     * @param change key of the change the task belongs to
+     * @param key key of the tasks to coalesce
+     * @param task task to run
+     * @param delay delay in milliseconds; {@code 0} or less queues the task
+     *        right away
+     */
+    void submitCoalesced(final String change, final String key, Runnable task, long delay) {
+        WorkQueue.Executor e = executor;
+        if (delay <= 0 || e == null) {
+            submit(change, task);
+            return;
+        }
+        if (delayed.put(key, task) != null) {
+            coalesced.increment();
+            return;
+        }
+        Runnable queue = new Runnable() {
+            @Override
+            public void run() {
+                Runnable latest = delayed.remove(key);
+                if (latest != null) {
+                    submit(change, latest);
+                }
+            }
+        };
+        try {
+            e.schedule(queue, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            queue.run();
+        }
+    }
+
+    private void execute(ChangeTask task) {
+        if (!queue(task)) {
+            task.run();
+        }
+    }
+
+    /**
+     * @return true if the task was queued, false if it has to run inline
+     */
+    private boolean queue(ChangeTask task) {
+        WorkQueue.Executor e = executor;
+        if (e != null) {
+            try {
+                e.execute(task);
+                return true;
+            } catch (RejectedExecutionException ex) {
+                log.debug("Event queue is shut down, handling {} inline", task);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs a task of a change, then queues the next task of the same change
+     * at the end of the queue so that busy changes do not hold a thread.
+     * Without a queue, the tasks of the change run one after the other in a
+     * loop rather than from within each other.
+     */
+    private class ChangeTask implements Runnable {
+        private final String change;
+        private final Runnable task;
+
+        ChangeTask(String change, Runnable task) {
+            this.change = change;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            Runnable current = task;
+            while (current != null) {
+                boolean done = false;
+                try {
+                    current.run();
+                    done = true;
+                } catch (RuntimeException e) {
+                    log.error("Error handling event of change {}", change, e);
+                    done = true;
+                } finally {
+                    depth.decrementAndGet();
+                    if (!done) {
+                        // an Error; hand over, or the later events of the
+                        // change never run
+                        Runnable next = pollNext();
+                        if (next != null) {
+                            execute(new ChangeTask(change, next));
+                        }
+                    }
+                }
+                current = pollNext();
+                if (current != null && queue(new ChangeTask(change, current))) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return the next task of the change, null if there is none and
+         *         the change has no task running any more
+         */
+        private Runnable pollNext() {
+            synchronized (pending) {
+                Deque<Runnable> tasks = pending.get(change);
+                Runnable next = tasks != null ? tasks.poll() : null;
+                if (next == null) {
+                    pending.remove(change);
+                }
+                return next;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return task.toString();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.googlesource.gerrit.plugins.moduleowner;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.extensions.client.DiffPreferencesInfo.Whitespace;
+import com.google.gerrit.reviewdb.client.Patch;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.patch.PatchList;
+import com.google.gerrit.server.patch.PatchListCache;
+import com.google.gerrit.server.patch.PatchListEntry;
+import com.google.gerrit.server.patch.PatchListKey;
+import com.google.gerrit.server.patch.PatchListNotAvailableException;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import com.google.inject.TypeLiteral;
+import com.google.inject.name.Named;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import static com.googlesource.gerrit.plugins.moduleowner.ModuleOwnerUtils.listFilesInCommit;
+
+/**
+ * Cache of the files changed by a commit, shared by reviewer selection,
+ * label sync, the REST endpoint and the merge validator.
+ *
+ * Files are read from Gerrit's {@link PatchListCache}, i.e. compared to the
+ * parent of the commit, or to the auto-merge of the parents for a merge, and
+ * only diffed with JGit if the patch list is not available.
+ */
+@Singleton
+public class ChangedFilesCache {
+    private static final Logger log = LoggerFactory.getLogger(ChangedFilesCache.class);
+
+    private static final String CACHE_NAME = "changed_files";
+
+    public static Module module() {
+        return new CacheModule() {
+            @Override
+            protected void configure() {
+            persist(CACHE_NAME, Key.class, new TypeLiteral<ImmutableList<String>>() {})
+                    .maximumWeight(16 << 20)
+                    .diskLimit(128 << 20)
+                    .weigher(FilesWeigher.class);
+
+            bind(ChangedFilesCache.class);
+            }
+        };
+    }
+
+    private final Cache<Key, ImmutableList<String>> cache;
+    private final PatchListCache patchListCache;
+
+    @Inject
+    public ChangedFilesCache(
+            @Named(CACHE_NAME) Cache<Key, ImmutableList<String>> cache,
+            PatchListCache patchListCache) {
+        this.cache = cache;
+        this.patchListCache = patchListCache;
+    }
+
+    /**
+     * Returns the files changed by a commit, computing them on the first call.
+     *
+     * @param projectName project of the commit
+     * @param repo open repository of the project
+     * @param commit commit to get the files of
+     * @return list of changed files, empty if they could not be computed
+     */
+    public List<String> get(final Project.NameKey projectName, final Repository repo,
+                            final RevCommit commit) {
+        try {
+            return cache.get(new Key(projectName, commit),
+                             new Callable<ImmutableList<String>>() {
+                @Override
+                public ImmutableList<String> call() throws Exception {
+                    return loadFiles(projectName, repo, commit);
+                }
+            });
+        } catch (ExecutionException e) {
+            log.error("{} failed to determine files in commit {}!",
+                      projectName, commit.getName(), e.getCause());
+            return ImmutableList.of();
+        }
+    }
+
+    /**
+     * @param projectName project of the commit
+     * @param commit commit to get the files of
+     * @return list of changed files, or null if they are not cached
+     */
+    public List<String> getIfPresent(Project.NameKey projectName, ObjectId commit) {
+        return cache.getIfPresent(new Key(projectName, commit));
+    }
+
+    /**
+     * Caches the complete list of files changed by a commit that is not a merge.
+     *
+     * @param projectName project of the commit
+     * @param commit commit the files were computed for
+     * @param files all files changed compared to the parent of the commit
+     */
+    public void put(Project.NameKey projectName, ObjectId commit, List<String> files) {
+        cache.put(new Key(projectName, commit), ImmutableList.copyOf(files));
+    }
+
+    private ImmutableList<String> loadFiles(Project.NameKey projectName, Repository repo,
+                                            RevCommit commit)
+            throws IOException, GitAPIException {
+        PatchList patchList;
+        try {
+            patchList = patchListCache.get(
+                    PatchListKey.againstDefaultBase(commit, Whitespace.IGNORE_NONE),
+                    projectName);
+        } catch (PatchListNotAvailableException e) {
+            log.warn("Patch list not available for commit {} in {}, diffing trees",
+                     commit.getName(), projectName, e);
+            return ImmutableList.copyOf(listFilesInCommit(repo, commit));
+        }
+
+        ImmutableList.Builder<String> files = ImmutableList.builder();
+        for (PatchListEntry entry : patchList.getPatches()) {
+            if (Patch.isMagic(entry.getNewName())) {
+                // skip /COMMIT_MSG and /MERGE_LIST
+                continue;
+            }
+            switch (entry.getChangeType()) {
+                case RENAMED:
+                case COPIED:
+                    files.add(entry.getOldName());
+                    files.add(entry.getNewName());
+                    break;
+                case ADDED:
+                case MODIFIED:
+                case DELETED:
+                case REWRITE:
+                default:
+                    // the new name of a deleted file is its old path
+                    files.add(entry.getNewName());
+                    break;
+            }
+        }
+        return files.build();
+    }
+
+    static class Key implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String project;
+        private final ObjectId commit;
+
+        Key(Project.NameKey project, ObjectId commit) {
+            this.project = project.get();
+            this.commit = commit.copy();
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(project, commit);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return Objects.equals(this.project, other.project)
+                    && Objects.equals(this.commit, other.commit);
+        }
+
+        @Override
+        public String toString() {
+            return project + ":" + commit.name();
+        }
+    }
+
+    static class FilesWeigher implements Weigher<Key, ImmutableList<String>> {
+        @Override
+        public int weigh(Key key, ImmutableList<String> files) {
+            int size = 16 + 2 * key.project.length() + 40; // key and object id
+            for (String file : files) {
+                size += 40 + 2 * file.length(); // string header and characters
+            }
+            return size;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.googlesource.gerrit.plugins.moduleowner;
+
+import com.googlesource.gerrit.plugins.moduleowner.OwnershipMatcher.SubtreeOwnership;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import java.io.IOException;
+
+/**
+ * Streams the paths changed by a commit compared to its first parent, or
+ * all paths of a root commit, without building the full list first.
+ *
+ * Paths are reported in tree order; a renamed file is reported by its old
+ * and new path. An optional {@link SubtreeFilter} decides for each changed
+ * directory whether it has to be walked at all.
+ */
+final class ChangedPathWalk implements AutoCloseable {
+
+    /**
+     * Decides the ownership of changed directories before they are walked.
+     */
+    interface SubtreeFilter {
+        /**
+         * @param directory changed directory, without trailing '/'
+         * @return {@code OWNED} to skip the directory, {@code NOT_OWNED} to
+         *         stop the walk, {@code UNDECIDED} to walk its paths
+         */
+        SubtreeOwnership getSubtreeOwnership(String directory);
+    }
+
+    private final TreeWalk tw;
+    private final SubtreeFilter filter;
+    private boolean skipped;
+    private boolean denied;
+
+    ChangedPathWalk(Repository repo, RevCommit commit, SubtreeFilter filter)
+            throws IOException {
+        this.filter = filter;
+        tw = new TreeWalk(repo);
+        tw.setRecursive(false);
+        if (commit.getParentCount() > 0) {
+            try (RevWalk rw = new RevWalk(repo)) {
+                tw.addTree(rw.parseCommit(commit.getParent(0)).getTree());
+            }
+            tw.setFilter(TreeFilter.ANY_DIFF);
+        }
+        tw.addTree(commit.getTree());
+    }
+
+    /**
+     * @return the next changed path, or null when all paths were reported or
+     *         a directory was not owned
+     * @throws IOException if a tree cannot be read
+     */
+    String next() throws IOException {
+        while (tw.next()) {
+            if (!tw.isSubtree()) {
+                return tw.getPathString();
+            }
+            SubtreeOwnership ownership = filter != null
+                    ? filter.getSubtreeOwnership(tw.getPathString())
+                    : SubtreeOwnership.UNDECIDED;
+            switch (ownership) {
+                case OWNED:
+                    skipped = true;
+                    break;
+                case NOT_OWNED:
+                    denied = true;
+                    return null;
+                case UNDECIDED:
+                default:
+                    tw.enterSubtree();
+                    break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the walk stopped at a changed directory that is not owned
+     */
+    boolean isDenied() {
+        return denied;
+    }
+
+    /**
+     * @return true if owned directories were skipped, i.e. not all changed
+     *         paths were reported
+     */
+    boolean isIncomplete() {
+        return skipped || denied;
+    }
+
+    @Override
+    public void close() {
+        tw.close();
+    }
+}
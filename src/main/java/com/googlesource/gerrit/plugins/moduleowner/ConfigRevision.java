@@ -0,0 +1,124 @@
+package com.googlesource.gerrit.plugins.moduleowner;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.server.project.ProjectState;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Identifies everything a module owner config snapshot is built from: the
+ * {@code moduleowner.config} blob of the project and of each of its parents,
+ * and whether the project has the Module-Owner label.
+ *
+ * Blobs are read at the {@code refs/meta/config} revisions of the cached
+ * project states, i.e. the revisions the plugin config is loaded from.
+ */
+final class ConfigRevision {
+    private static final Logger log = LoggerFactory.getLogger(ConfigRevision.class);
+
+    static final String CONFIG_FILE = ModuleOwnerConfig.PLUGIN_NAME + ".config";
+
+    private final ImmutableList<Project.NameKey> projects;
+    private final ImmutableList<ObjectId> blobs;
+    private final boolean moduleOwnerLabel;
+    private final boolean complete;
+
+    private ConfigRevision(List<Project.NameKey> projects, List<ObjectId> blobs,
+                           boolean moduleOwnerLabel, boolean complete) {
+        this.projects = ImmutableList.copyOf(projects);
+        this.blobs = ImmutableList.copyOf(blobs);
+        this.moduleOwnerLabel = moduleOwnerLabel;
+        this.complete = complete;
+    }
+
+    /**
+     * @param projectCache cache of the project states
+     * @param repoManager repository manager
+     * @param projectName project to read the revision of
+     * @return current revision of the project's module owner config
+     */
+    static ConfigRevision read(ProjectCache projectCache, GitRepositoryManager repoManager,
+                               Project.NameKey projectName) {
+        ProjectState projectState = projectCache.get(projectName);
+        if (projectState == null) {
+            return new ConfigRevision(ImmutableList.of(projectName),
+                                      ImmutableList.<ObjectId>of(), false, false);
+        }
+
+        ImmutableList.Builder<Project.NameKey> projects = ImmutableList.builder();
+        ImmutableList.Builder<ObjectId> blobs = ImmutableList.builder();
+        boolean complete = true;
+        for (ProjectState state : projectState.tree()) {
+            Project.NameKey name = state.getProject().getNameKey();
+            projects.add(name);
+            try {
+                blobs.add(readBlob(repoManager, name,
+                                   state.getConfig(CONFIG_FILE).getRevision()));
+            } catch (IOException e) {
+                log.warn("Cannot read {} of project {}", CONFIG_FILE, name, e);
+                complete = false;
+            }
+        }
+        boolean label = projectState.getLabelTypes()
+                .byLabel(ModuleOwnerConfig.MODULE_OWNER_LABEL) != null;
+        return new ConfigRevision(projects.build(), blobs.build(), label, complete);
+    }
+
+    private static ObjectId readBlob(GitRepositoryManager repoManager,
+                                     Project.NameKey projectName, ObjectId revision)
+            throws IOException {
+        if (revision == null) {
+            // project has no refs/meta/config
+            return ObjectId.zeroId();
+        }
+        try (Repository repo = repoManager.openRepository(projectName);
+             RevWalk rw = new RevWalk(repo);
+             TreeWalk tw = TreeWalk.forPath(repo, CONFIG_FILE,
+                                            rw.parseCommit(revision).getTree())) {
+            return tw != null ? tw.getObjectId(0) : ObjectId.zeroId();
+        }
+    }
+
+    /**
+     * @return the project followed by its parents, up to All-Projects
+     */
+    ImmutableList<Project.NameKey> getProjects() {
+        return projects;
+    }
+
+    boolean hasModuleOwnerLabel() {
+        return moduleOwnerLabel;
+    }
+
+    /**
+     * @param other revision to compare with, may be null
+     * @return true if both revisions were read completely and are the same
+     */
+    boolean isSameAs(ConfigRevision other) {
+        return other != null && complete && other.complete
+                && moduleOwnerLabel == other.moduleOwnerLabel
+                && projects.equals(other.projects)
+                && blobs.equals(other.blobs);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("projects", projects)
+                .add("blobs", blobs)
+                .add("moduleOwnerLabel", moduleOwnerLabel)
+                .add("complete", complete)
+                .toString();
+    }
+}
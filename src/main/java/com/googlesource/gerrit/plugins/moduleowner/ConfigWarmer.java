@@ -0,0 +1,158 @@
+package com.googlesource.gerrit.plugins.moduleowner;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.Iterables;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer0;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.server.project.ProjectState;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the module owner configs of all projects with the Module-Owner label
+ * when the plugin starts, so that the first event of each project does not
+ * pay for building its config.
+ *
+ * The projects are loaded in the background by a bounded number of workers
+ * sized with {@code plugin.moduleowner.warmupThreads}; {@code 0} disables the
+ * warm-up.
+ */
+@Singleton
+class ConfigWarmer implements LifecycleListener {
+    private static final Logger log = LoggerFactory.getLogger(ConfigWarmer.class);
+
+    private static final String CONFIG_WARMUP_THREADS = "warmupThreads";
+    private static final int DEFAULT_WARMUP_THREADS = 2;
+    private static final int PROGRESS_INTERVAL = 100;
+
+    private final ProjectCache projectCache;
+    private final ModuleOwnerConfigCache configCache;
+    private final WorkQueue workQueue;
+    private final int threads;
+
+    private final Queue<Project.NameKey> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger checked = new AtomicInteger();
+    private final AtomicInteger loaded = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final Timer0 warmupLatency;
+    private final Counter0 warmupLoaded;
+
+    private volatile WorkQueue.Executor executor;
+    private long start;
+    private int total;
+
+    @Inject
+    ConfigWarmer(ProjectCache projectCache,
+                 ModuleOwnerConfigCache configCache,
+                 WorkQueue workQueue,
+                 PluginConfigFactory configFactory,
+                 MetricMaker metricMaker) {
+        this.projectCache = projectCache;
+        this.configCache = configCache;
+        this.workQueue = workQueue;
+        this.threads = configFactory.getFromGerritConfig(ModuleOwnerConfig.PLUGIN_NAME)
+                .getInt(CONFIG_WARMUP_THREADS, DEFAULT_WARMUP_THREADS);
+
+        this.warmupLatency = metricMaker.newTimer("config/warmup_latency",
+                new Description("Time to preload the module owner configs at start")
+                        .setCumulative()
+                        .setUnit(Units.MILLISECONDS));
+        this.warmupLoaded = metricMaker.newCounter("config/warmup_loaded",
+                new Description("Module owner configs preloaded at start")
+                        .setCumulative()
+                        .setUnit("configs"));
+        metricMaker.newCallbackMetric("config/warmup_pending", Integer.class,
+                new Description("Projects left to check by the config warm-up")
+                        .setGauge()
+                        .setUnit("projects"),
+                new Supplier<Integer>() {
+                    @Override
+                    public Integer get() {
+                        return pending.size();
+                    }
+                });
+    }
+
+    @Override
+    public void start() {
+        if (threads <= 0) {
+            log.info("Module owner config warm-up disabled");
+            return;
+        }
+        Iterables.addAll(pending, projectCache.all());
+        total = pending.size();
+        start = System.nanoTime();
+        log.info("Preloading module owner configs of {} projects with {} threads",
+                 total, threads);
+
+        executor = workQueue.createQueue(threads, "ModuleOwner-Warmup");
+        running.set(threads);
+        for (int i = 0; i < threads; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    warm();
+                }
+
+                @Override
+                public String toString() {
+                    return "Preload module owner configs";
+                }
+            });
+        }
+    }
+
+    @Override
+    public void stop() {
+        pending.clear();
+        WorkQueue.Executor e = executor;
+        executor = null;
+        if (e != null) {
+            e.unregisterWorkQueue();
+            e.shutdownNow();
+        }
+    }
+
+    private void warm() {
+        Project.NameKey project;
+        while ((project = pending.poll()) != null && !Thread.currentThread().isInterrupted()) {
+            try {
+                ProjectState state = projectCache.get(project);
+                if (state != null && state.getLabelTypes()
+                        .byLabel(ModuleOwnerConfig.MODULE_OWNER_LABEL) != null) {
+                    configCache.get(project);
+                    loaded.incrementAndGet();
+                    warmupLoaded.increment();
+                }
+            } catch (RuntimeException e) {
+                log.warn("Cannot preload module owner config of {}", project, e);
+            }
+            int n = checked.incrementAndGet();
+            if (n % PROGRESS_INTERVAL == 0) {
+                log.info("Module owner config warm-up: checked {}/{} projects, loaded {}",
+                         n, total, loaded.get());
+            }
+        }
+        if (running.decrementAndGet() == 0) {
+            long elapsed = System.nanoTime() - start;
+            warmupLatency.record(elapsed, TimeUnit.NANOSECONDS);
+            log.info("Preloaded {} module owner configs of {} projects in {} ms",
+                     loaded.get(), checked.get(), TimeUnit.NANOSECONDS.toMillis(elapsed));
+        }
+    }
+}
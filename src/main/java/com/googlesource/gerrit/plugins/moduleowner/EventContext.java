@@ -0,0 +1,122 @@
+package com.googlesource.gerrit.plugins.moduleowner;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.PatchSet;
+import com.google.gerrit.reviewdb.client.PatchSetApproval;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.events.PatchSetEvent;
+import com.google.gwtorm.server.OrmException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * State of a change needed to handle one patch set event, loaded once and
+ * shared by reviewer assignment and the label sync. A context is used by the
+ * thread handling the event, while its repository is open.
+ */
+final class EventContext {
+    private static final Logger log = LoggerFactory.getLogger(EventContext.class);
+
+    private final ModuleOwnerConfig config;
+    private final Change change;
+    private final PatchSet patchSet;
+    private final List<PatchSetApproval> approvals;
+    private final RevCommit commit;
+    private final Repository repo;
+    private final ChangedFilesCache changedFiles;
+    private List<String> files;
+
+    private EventContext(ModuleOwnerConfig config, Change change, PatchSet patchSet,
+                         List<PatchSetApproval> approvals, RevCommit commit,
+                         Repository repo, ChangedFilesCache changedFiles) {
+        this.config = config;
+        this.change = change;
+        this.patchSet = patchSet;
+        this.approvals = approvals;
+        this.commit = commit;
+        this.repo = repo;
+        this.changedFiles = changedFiles;
+    }
+
+    /**
+     * @param event event to load the change of
+     * @param config config snapshot of the project
+     * @param reviewDb database to read the change and its approvals from
+     * @param repo repository of the project, to read the changed files from
+     * @param changedFiles cache of the files changed by the patch set
+     * @return the loaded context, null if the change or patch set does not
+     *         exist
+     */
+    static EventContext load(PatchSetEvent event, ModuleOwnerConfig config,
+                             ReviewDb reviewDb, Repository repo,
+                             ChangedFilesCache changedFiles)
+            throws OrmException, IOException {
+        Change.Id changeId = new Change.Id(event.change.get().number);
+        Change change = reviewDb.changes().get(changeId);
+        if (change == null) {
+            log.warn("Change {} not found.", changeId.get());
+            return null;
+        }
+
+        PatchSet.Id psId = new PatchSet.Id(changeId, event.patchSet.get().number);
+        PatchSet patchSet = reviewDb.patchSets().get(psId);
+        if (patchSet == null) {
+            log.warn("Patch set {} not found.", psId.get());
+            return null;
+        }
+
+        List<PatchSetApproval> approvals = ImmutableList.copyOf(
+                reviewDb.patchSetApprovals().byChange(changeId));
+
+        RevCommit commit;
+        try (RevWalk rw = new RevWalk(repo)) {
+            commit = rw.parseCommit(ObjectId.fromString(event.patchSet.get().revision));
+        }
+        return new EventContext(config, change, patchSet, approvals, commit,
+                                repo, changedFiles);
+    }
+
+    ModuleOwnerConfig getConfig() {
+        return config;
+    }
+
+    Change getChange() {
+        return change;
+    }
+
+    PatchSet getPatchSet() {
+        return patchSet;
+    }
+
+    /**
+     * @return approvals of all patch sets of the change
+     */
+    List<PatchSetApproval> getApprovals() {
+        return approvals;
+    }
+
+    RevCommit getCommit() {
+        return commit;
+    }
+
+    /**
+     * Reads the changed files on first use, only while the repository the
+     * context was loaded with is open.
+     *
+     * @return files changed by the patch set
+     */
+    List<String> getChangedFiles() {
+        if (files == null) {
+            files = changedFiles.get(config.getProjectName(), repo, commit);
+        }
+        return files;
+    }
+}
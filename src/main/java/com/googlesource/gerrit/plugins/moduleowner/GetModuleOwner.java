@@ -31,16 +31,19 @@ public class GetModuleOwner implements RestReadView<RevisionResource> {
     private final Provider<CurrentUser> currentUserProvider;
     private final PatchListCache patchListCache;
     private final ModuleOwnerConfigCache configCache;
+    private final ModuleOwnerEvaluator evaluator;
 
     @Inject
     GetModuleOwner(Provider<CurrentUser> currentUserProvider,
                    GitRepositoryManager gitManager,
                    PatchListCache patchListCache,
-                   ModuleOwnerConfigCache configCache) {
+                   ModuleOwnerConfigCache configCache,
+                   ModuleOwnerEvaluator evaluator) {
         this.currentUserProvider = currentUserProvider;
         this.gitManager = gitManager;
         this.patchListCache = patchListCache;
         this.configCache = configCache;
+        this.evaluator = evaluator;
     }
 
     @Override
@@ -76,8 +79,8 @@ public class GetModuleOwner implements RestReadView<RevisionResource> {
         try (Repository repo = gitManager.openRepository(change.getProject())) {
             RevWalk rw = new RevWalk(repo.newObjectReader());
             PatchList curList = patchListCache.get(rev.getChange(), rev.getPatchSet());
-            if (config.isModuleOwner(submittingUser.getAccountId(), repo,
-                                     rw.parseCommit(curList.getNewId()))) {
+            if (evaluator.isModuleOwner(config, submittingUser.getAccountId(), repo,
+                                        rw.parseCommit(curList.getNewId()))) {
                 return Response.ok(Status.APPROVED);
             } else {
                 return Response.ok(Status.DENIED);
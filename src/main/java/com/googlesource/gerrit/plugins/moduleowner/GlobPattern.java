@@ -0,0 +1,215 @@
+package com.googlesource.gerrit.plugins.moduleowner;
+
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Path glob compiled without a regex engine.
+ *
+ * {@code *} matches any characters within a path segment, {@code ?} a single
+ * character within a segment and a {@code **} segment any number of whole
+ * segments. A trailing {@code **} matches at least one segment, so
+ * {@code dir/**} matches the files below {@code dir} but not {@code dir}
+ * itself. The common shapes {@code dir/**}, {@code **}{@code /*.ext} and
+ * {@code dir/**}{@code /*.ext} compile to plain prefix and suffix checks;
+ * other globs are matched segment by segment. Matching never allocates.
+ */
+final class GlobPattern {
+    /**
+     * Marks glob patterns among the regex patterns of a config.
+     */
+    static final String PREFIX = "glob:";
+
+    static final String ANY_PATH = "**";
+
+    private GlobPattern() {
+    }
+
+    static boolean isGlob(String pattern) {
+        return pattern.startsWith(PREFIX);
+    }
+
+    /**
+     * @param glob path glob, without {@link #PREFIX}
+     * @return compiled glob
+     * @throws PatternSyntaxException if the glob is not a relative path
+     */
+    static PathPattern compile(final String glob) {
+        if (glob.isEmpty() || glob.startsWith("/") || glob.endsWith("/")) {
+            throw new PatternSyntaxException("Glob must be a relative file path", glob, 0);
+        }
+
+        if (!hasWildcard(glob)) {
+            return new Exact(glob);
+        }
+        if (glob.equals(ANY_PATH)) {
+            return new PrefixSuffix(glob, "", "");
+        }
+        if (glob.endsWith("/" + ANY_PATH)) {
+            String prefix = glob.substring(0, glob.length() - ANY_PATH.length());
+            if (!hasWildcard(prefix)) {
+                return new PrefixSuffix(glob, prefix, "");
+            }
+        }
+        int any = glob.indexOf(ANY_PATH + "/*");
+        if (any == 0 || (any > 0 && glob.charAt(any - 1) == '/')) {
+            String prefix = glob.substring(0, any);
+            String suffix = glob.substring(any + ANY_PATH.length() + 2);
+            if (!hasWildcard(prefix) && !hasWildcard(suffix) && suffix.indexOf('/') < 0) {
+                return new PrefixSuffix(glob, prefix, suffix);
+            }
+        }
+        return new Segments(glob);
+    }
+
+    /**
+     * @param glob path glob, without {@link #PREFIX}
+     * @return the directory every matching path is in, ending with '/', or
+     *         the empty string
+     */
+    static String literalDirectoryPrefix(String glob) {
+        int wildcard = firstWildcard(glob);
+        int slash = glob.lastIndexOf('/', wildcard < 0 ? glob.length() : wildcard);
+        return slash < 0 ? "" : glob.substring(0, slash + 1);
+    }
+
+    private static boolean hasWildcard(String glob) {
+        return firstWildcard(glob) >= 0;
+    }
+
+    private static int firstWildcard(String glob) {
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Matches the characters {@code path[from, to)} against a single glob
+     * segment, backtracking only to the last {@code *}.
+     */
+    private static boolean matchSegment(String segment, String path, int from, int to) {
+        int g = 0;
+        int p = from;
+        int star = -1;
+        int starP = from;
+        while (p < to) {
+            if (g < segment.length()
+                    && (segment.charAt(g) == '?' || segment.charAt(g) == path.charAt(p))) {
+                g++;
+                p++;
+            } else if (g < segment.length() && segment.charAt(g) == '*') {
+                star = g++;
+                starP = p;
+            } else if (star >= 0) {
+                g = star + 1;
+                p = ++starP;
+            } else {
+                return false;
+            }
+        }
+        while (g < segment.length() && segment.charAt(g) == '*') {
+            g++;
+        }
+        return g == segment.length();
+    }
+
+    private static final class Exact implements PathPattern {
+        private final String path;
+
+        Exact(String path) {
+            this.path = path;
+        }
+
+        @Override
+        public boolean matches(String path) {
+            return this.path.equals(path);
+        }
+
+        @Override
+        public String toString() {
+            return path;
+        }
+    }
+
+    private static final class PrefixSuffix implements PathPattern {
+        private final String glob;
+        private final String prefix;
+        private final String suffix;
+
+        PrefixSuffix(String glob, String prefix, String suffix) {
+            this.glob = glob;
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+
+        @Override
+        public boolean matches(String path) {
+            return path.length() >= prefix.length() + suffix.length()
+                    && path.startsWith(prefix) && path.endsWith(suffix);
+        }
+
+        @Override
+        public String toString() {
+            return glob;
+        }
+    }
+
+    private static final class Segments implements PathPattern {
+        private final String glob;
+        private final String[] segments;
+
+        Segments(String glob) {
+            this.glob = glob;
+            this.segments = glob.split("/");
+        }
+
+        @Override
+        public boolean matches(String path) {
+            int length = path.length();
+            int g = 0;
+            int p = 0;
+            int star = -1;
+            int starP = 0;
+            while (true) {
+                if (p > length) {
+                    // all path segments consumed; a remaining ** is either the
+                    // last segment, which needs at least one path segment, or
+                    // followed by segments that cannot match
+                    return g == segments.length;
+                }
+                int end = path.indexOf('/', p);
+                if (end < 0) {
+                    end = length;
+                }
+                if (g < segments.length) {
+                    if (segments[g].equals(ANY_PATH)) {
+                        star = g++;
+                        starP = p;
+                        continue;
+                    }
+                    if (matchSegment(segments[g], path, p, end)) {
+                        g++;
+                        p = end + 1;
+                        continue;
+                    }
+                }
+                if (star < 0) {
+                    return false;
+                }
+                // let the last ** absorb one more path segment
+                int starEnd = path.indexOf('/', starP);
+                starP = (starEnd < 0 ? length : starEnd) + 1;
+                g = star + 1;
+                p = starP;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return glob;
+        }
+    }
+}
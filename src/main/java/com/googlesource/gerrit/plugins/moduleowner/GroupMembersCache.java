@@ -0,0 +1,225 @@
+package com.googlesource.gerrit.plugins.moduleowner;
+
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.gerrit.audit.GroupMemberAuditListener;
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.AccountGroup;
+import com.google.gerrit.reviewdb.client.AccountGroupById;
+import com.google.gerrit.reviewdb.client.AccountGroupMember;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.account.GroupCache;
+import com.google.gerrit.server.account.GroupIncludeCache;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gwtorm.server.SchemaFactory;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import com.google.inject.TypeLiteral;
+import com.google.inject.name.Named;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of the accounts that are members of a group, directly or through
+ * included groups. This is the notion of membership used for all ownership
+ * decisions: {@link #getIncludingGroups} gives the same groups for an
+ * account as expanding each group would.
+ *
+ * Entries are loaded from ReviewDb and the group include cache, and
+ * invalidated when the members or included groups of a group, or of a group
+ * included in it, change. Entries also expire after a few minutes, as the
+ * invalidation can race with the load of the old members.
+ */
+@Singleton
+public class GroupMembersCache {
+    private static final Logger log = LoggerFactory.getLogger(GroupMembersCache.class);
+
+    private static final String CACHE_NAME = "group_members";
+
+    /**
+     * Group changes are reported before they are written, so a load racing
+     * the invalidation can cache the old members; expiry bounds how long.
+     */
+    private static final long MAX_AGE_MINUTES = 5;
+
+    public static Module module() {
+        return new CacheModule() {
+            @Override
+            protected void configure() {
+            cache(CACHE_NAME, AccountGroup.UUID.class,
+                  new TypeLiteral<ImmutableSet<Account.Id>>() {})
+                    .expireAfterWrite(MAX_AGE_MINUTES, TimeUnit.MINUTES)
+                    .loader(Loader.class);
+
+            DynamicSet.bind(binder(), GroupMemberAuditListener.class)
+                    .to(GroupMembersCache.Invalidator.class);
+
+            bind(GroupMembersCache.class);
+            }
+        };
+    }
+
+    private final LoadingCache<AccountGroup.UUID, ImmutableSet<Account.Id>> cache;
+    private final GroupCache groupCache;
+    private final GroupIncludeCache groupIncludeCache;
+
+    @Inject
+    public GroupMembersCache(
+            @Named(CACHE_NAME) LoadingCache<AccountGroup.UUID, ImmutableSet<Account.Id>> cache,
+            GroupCache groupCache,
+            GroupIncludeCache groupIncludeCache) {
+        this.cache = cache;
+        this.groupCache = groupCache;
+        this.groupIncludeCache = groupIncludeCache;
+    }
+
+    /**
+     * @param group group to get the members of
+     * @return direct and indirect members of the group, empty if the group
+     *         is not an internal group or could not be loaded
+     */
+    public Set<Account.Id> get(AccountGroup.UUID group) {
+        try {
+            return cache.get(group);
+        } catch (ExecutionException e) {
+            log.error("Error loading members of group {}", group, e.getCause());
+            return ImmutableSet.of();
+        }
+    }
+
+    /**
+     * @param groups internal groups an account is a direct member of
+     * @return the groups and all groups including them, directly or through
+     *         other included groups
+     */
+    public Set<AccountGroup.UUID> getIncludingGroups(Set<AccountGroup.UUID> groups) {
+        Set<AccountGroup.UUID> seen = Sets.newHashSet();
+        Deque<AccountGroup.UUID> todo = Lists.newLinkedList(groups);
+        while (!todo.isEmpty()) {
+            AccountGroup.UUID uuid = todo.poll();
+            if (seen.add(uuid)) {
+                todo.addAll(groupIncludeCache.parentGroupsOf(uuid));
+            }
+        }
+        return seen;
+    }
+
+    /**
+     * Invalidates the members of a group and of all groups including it.
+     */
+    private void evict(AccountGroup.Id groupId) {
+        AccountGroup group = groupCache.get(groupId);
+        if (group == null) {
+            cache.invalidateAll();
+            return;
+        }
+        Set<AccountGroup.UUID> seen = Sets.newHashSet();
+        Deque<AccountGroup.UUID> todo = Lists.newLinkedList();
+        todo.add(group.getGroupUUID());
+        while (!todo.isEmpty()) {
+            AccountGroup.UUID uuid = todo.poll();
+            if (seen.add(uuid)) {
+                cache.invalidate(uuid);
+                todo.addAll(groupIncludeCache.parentGroupsOf(uuid));
+            }
+        }
+        log.debug("Invalidated members of groups {}", seen);
+    }
+
+    @Singleton
+    static class Invalidator implements GroupMemberAuditListener {
+        private final GroupMembersCache cache;
+
+        @Inject
+        Invalidator(GroupMembersCache cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public void onAddAccountsToGroup(Account.Id actor,
+                                         Collection<AccountGroupMember> added) {
+            for (AccountGroupMember m : added) {
+                cache.evict(m.getAccountGroupId());
+            }
+        }
+
+        @Override
+        public void onDeleteAccountsFromGroup(Account.Id actor,
+                                              Collection<AccountGroupMember> removed) {
+            for (AccountGroupMember m : removed) {
+                cache.evict(m.getAccountGroupId());
+            }
+        }
+
+        @Override
+        public void onAddGroupsToGroup(Account.Id actor,
+                                       Collection<AccountGroupById> added) {
+            for (AccountGroupById g : added) {
+                cache.evict(g.getGroupId());
+            }
+        }
+
+        @Override
+        public void onDeleteGroupsFromGroup(Account.Id actor,
+                                            Collection<AccountGroupById> removed) {
+            for (AccountGroupById g : removed) {
+                cache.evict(g.getGroupId());
+            }
+        }
+    }
+
+    static class Loader extends CacheLoader<AccountGroup.UUID, ImmutableSet<Account.Id>> {
+        private final SchemaFactory<ReviewDb> schemaFactory;
+        private final GroupCache groupCache;
+        private final GroupIncludeCache groupIncludeCache;
+
+        @Inject
+        Loader(SchemaFactory<ReviewDb> schemaFactory,
+               GroupCache groupCache,
+               GroupIncludeCache groupIncludeCache) {
+            this.schemaFactory = schemaFactory;
+            this.groupCache = groupCache;
+            this.groupIncludeCache = groupIncludeCache;
+        }
+
+        @Override
+        public ImmutableSet<Account.Id> load(AccountGroup.UUID uuid) throws Exception {
+            // Don't use groupDetailFactory because it only show current user's visible groups
+            ImmutableSet.Builder<Account.Id> members = ImmutableSet.builder();
+            try (ReviewDb db = schemaFactory.open()) {
+                Set<AccountGroup.UUID> seen = Sets.newHashSet();
+                Deque<AccountGroup.UUID> todo = Lists.newLinkedList();
+                todo.add(uuid);
+                while (!todo.isEmpty()) {
+                    AccountGroup.UUID next = todo.poll();
+                    if (!seen.add(next)) {
+                        continue;
+                    }
+                    AccountGroup group = groupCache.get(next);
+                    if (group == null) {
+                        // external group, or deleted
+                        continue;
+                    }
+                    for (AccountGroupMember member
+                            : db.accountGroupMembers().byGroup(group.getId())) {
+                        members.add(member.getAccountId());
+                    }
+                    todo.addAll(groupIncludeCache.subgroupsOf(next));
+                }
+                log.debug("Loaded group {} with included groups {}", uuid, seen);
+            }
+            return members.build();
+        }
+    }
+}
@@ -0,0 +1,629 @@
+package com.googlesource.gerrit.plugins.moduleowner;
+
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Regular expression compiled to a Thompson automaton and matched by
+ * simulating all automaton states at once, so matching a path takes time
+ * linear in its length regardless of the pattern (as in RE2).
+ *
+ * Supports the commonly used subset of the Java syntax: literals and escaped
+ * punctuation, {@code .}, character classes, the {@code \d \w \s} classes and
+ * their negations, groups, alternation, greedy and lazy quantifiers, and a
+ * leading {@code ^} or trailing {@code $}. Constructs which need backtracking
+ * or matching context (backreferences, lookaround, possessive quantifiers,
+ * boundaries, flags) are rejected with a {@link PatternSyntaxException}.
+ */
+final class LinearRegex implements PathPattern {
+    private static final int MAX_INSTRUCTIONS = 10000;
+    private static final int MAX_REPETITION = 1000;
+
+    private static final int CHAR = 0;
+    private static final int SPLIT = 1;
+    private static final int JMP = 2;
+    private static final int MATCH = 3;
+
+    private final String regex;
+    private final int[] op;
+    private final int[] x;
+    private final int[] y;
+    private final CharClass[] classes;
+
+    /**
+     * Work arrays of each thread, shared by all expressions and grown to the
+     * largest program the thread has matched, so that their memory is bound
+     * by {@link #MAX_INSTRUCTIONS} per thread rather than growing with the
+     * number of expressions.
+     */
+    private static final ThreadLocal<State> STATE = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State(0);
+        }
+    };
+
+    private LinearRegex(String regex, Compiler program) {
+        int size = program.size;
+        this.regex = regex;
+        this.op = Arrays.copyOf(program.op, size);
+        this.x = Arrays.copyOf(program.x, size);
+        this.y = Arrays.copyOf(program.y, size);
+        this.classes = Arrays.copyOf(program.classes, size);
+    }
+
+    /**
+     * @param regex Java regular expression
+     * @return compiled expression
+     * @throws PatternSyntaxException if the expression is invalid or uses an
+     *         unsupported construct
+     */
+    static LinearRegex compile(String regex) {
+        Node root = new Parser(regex).parse();
+        Compiler program = new Compiler(regex);
+        program.emit(root);
+        program.add(MATCH, null);
+        return new LinearRegex(regex, program);
+    }
+
+    @Override
+    public boolean matches(String path) {
+        State s = STATE.get();
+        if (s.mark.length < op.length) {
+            s = new State(op.length);
+            STATE.set(s);
+        }
+        int[] current = s.current;
+        int[] next = s.next;
+        int[] mark = s.mark;
+        int[] stack = s.stack;
+        if (s.generation > Integer.MAX_VALUE - path.length() - 2) {
+            Arrays.fill(mark, 0);
+            s.generation = 0;
+        }
+
+        // generations continue from the previous call, also of another
+        // expression, so marks need no reset
+        int generation = ++s.generation;
+        int count = addState(current, 0, 0, mark, generation, stack);
+        for (int i = 0; i < path.length() && count > 0; i++) {
+            char c = path.charAt(i);
+            generation++;
+            int nextCount = 0;
+            for (int j = 0; j < count; j++) {
+                int pc = current[j];
+                if (op[pc] == CHAR && classes[pc].matches(c)) {
+                    nextCount = addState(next, nextCount, pc + 1, mark, generation, stack);
+                }
+            }
+            int[] tmp = current;
+            current = next;
+            next = tmp;
+            count = nextCount;
+        }
+        s.generation = generation;
+        for (int j = 0; j < count; j++) {
+            if (op[current[j]] == MATCH) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds a state and everything reachable from it through empty
+     * transitions to the state list, each state at most once per generation.
+     */
+    private int addState(int[] list, int count, int start,
+                         int[] mark, int generation, int[] stack) {
+        int sp = 0;
+        stack[sp++] = start;
+        while (sp > 0) {
+            int pc = stack[--sp];
+            if (mark[pc] == generation) {
+                continue;
+            }
+            mark[pc] = generation;
+            switch (op[pc]) {
+                case JMP:
+                    stack[sp++] = x[pc];
+                    break;
+                case SPLIT:
+                    // push the second branch first so that the first is followed first
+                    stack[sp++] = y[pc];
+                    stack[sp++] = x[pc];
+                    break;
+                default:
+                    list[count++] = pc;
+                    break;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return regex;
+    }
+
+    private static final class State {
+        final int[] current;
+        final int[] next;
+        final int[] mark;
+        final int[] stack;
+        int generation;
+
+        State(int size) {
+            current = new int[size];
+            next = new int[size];
+            mark = new int[size];
+            stack = new int[2 * size + 1];
+        }
+    }
+
+    /**
+     * Set of characters, as sorted inclusive ranges.
+     */
+    private static final class CharClass {
+        static final CharClass ANY_BUT_LINE_TERMINATOR =
+                new CharClass(true, '\n', '\n', '\r', '\r', '\u0085', '\u0085',
+                              '\u2028', '\u2029');
+        static final CharClass DIGIT = new CharClass(false, '0', '9');
+        static final CharClass WORD =
+                new CharClass(false, '0', '9', 'A', 'Z', '_', '_', 'a', 'z');
+        static final CharClass SPACE =
+                new CharClass(false, '\t', '\r', ' ', ' ');
+
+        private final boolean negated;
+        private final char[] ranges;
+
+        CharClass(boolean negated, char... ranges) {
+            this.negated = negated;
+            this.ranges = ranges;
+        }
+
+        static CharClass of(char c) {
+            return new CharClass(false, c, c);
+        }
+
+        CharClass negate() {
+            return new CharClass(!negated, ranges);
+        }
+
+        boolean matches(char c) {
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (c >= ranges[i] && c <= ranges[i + 1]) {
+                    return !negated;
+                }
+            }
+            return negated;
+        }
+    }
+
+    private abstract static class Node {
+    }
+
+    private static final class Literal extends Node {
+        final CharClass chars;
+
+        Literal(CharClass chars) {
+            this.chars = chars;
+        }
+    }
+
+    private static final class Sequence extends Node {
+        final List<Node> nodes;
+
+        Sequence(List<Node> nodes) {
+            this.nodes = nodes;
+        }
+    }
+
+    private static final class Alternation extends Node {
+        final List<Node> nodes;
+
+        Alternation(List<Node> nodes) {
+            this.nodes = nodes;
+        }
+    }
+
+    private static final class Repetition extends Node {
+        final Node node;
+        final int min;
+        final int max; // -1 for unbounded
+
+        Repetition(Node node, int min, int max) {
+            this.node = node;
+            this.min = min;
+            this.max = max;
+        }
+    }
+
+    /**
+     * Recursive descent parser producing the syntax tree of an expression.
+     */
+    private static final class Parser {
+        private final String regex;
+        private int pos;
+
+        Parser(String regex) {
+            this.regex = regex;
+        }
+
+        Node parse() {
+            Node node = parseAlternation();
+            if (pos < regex.length()) {
+                throw error("Unmatched closing ')'");
+            }
+            return node;
+        }
+
+        private Node parseAlternation() {
+            List<Node> alternatives = Lists.newArrayList();
+            alternatives.add(parseSequence());
+            while (peek('|')) {
+                pos++;
+                alternatives.add(parseSequence());
+            }
+            return alternatives.size() == 1 ? alternatives.get(0) : new Alternation(alternatives);
+        }
+
+        private Node parseSequence() {
+            List<Node> nodes = Lists.newArrayList();
+            while (pos < regex.length() && !peek('|') && !peek(')')) {
+                Node atom = parseAtom();
+                if (atom != null) {
+                    nodes.add(parseQuantifier(atom));
+                }
+            }
+            return nodes.size() == 1 ? nodes.get(0) : new Sequence(nodes);
+        }
+
+        private Node parseQuantifier(Node atom) {
+            if (pos >= regex.length()) {
+                return atom;
+            }
+            int min;
+            int max;
+            switch (regex.charAt(pos)) {
+                case '*':
+                    min = 0;
+                    max = -1;
+                    pos++;
+                    break;
+                case '+':
+                    min = 1;
+                    max = -1;
+                    pos++;
+                    break;
+                case '?':
+                    min = 0;
+                    max = 1;
+                    pos++;
+                    break;
+                case '{':
+                    pos++;
+                    min = parseNumber();
+                    max = min;
+                    if (peek(',')) {
+                        pos++;
+                        max = peek('}') ? -1 : parseNumber();
+                    }
+                    if (!peek('}') || (max != -1 && max < min)) {
+                        throw error("Illegal repetition range");
+                    }
+                    pos++;
+                    if (min > MAX_REPETITION || max > MAX_REPETITION) {
+                        throw error("Repetition count above " + MAX_REPETITION
+                                    + " not supported");
+                    }
+                    break;
+                default:
+                    return atom;
+            }
+            if (peek('?')) {
+                // lazy and greedy quantifiers accept the same paths
+                pos++;
+            } else if (peek('+')) {
+                throw error("Possessive quantifiers not supported");
+            }
+            return new Repetition(atom, min, max);
+        }
+
+        private int parseNumber() {
+            int start = pos;
+            while (pos < regex.length() && Character.isDigit(regex.charAt(pos))) {
+                pos++;
+            }
+            if (start == pos || pos - start > 6) {
+                throw error("Illegal repetition");
+            }
+            return Integer.parseInt(regex.substring(start, pos));
+        }
+
+        /**
+         * @return the parsed atom, or null for an atom matching the empty string
+         */
+        private Node parseAtom() {
+            char c = regex.charAt(pos++);
+            switch (c) {
+                case '(':
+                    if (peek('?')) {
+                        if (regex.startsWith("?:", pos)) {
+                            pos += 2;
+                        } else if (regex.startsWith("?<", pos) && pos + 2 < regex.length()
+                                && Character.isLetter(regex.charAt(pos + 2))) {
+                            // named group
+                            int end = regex.indexOf('>', pos);
+                            if (end < 0) {
+                                throw error("Unterminated group name");
+                            }
+                            pos = end + 1;
+                        } else {
+                            throw error("Lookaround and inline flags not supported");
+                        }
+                    }
+                    Node group = parseAlternation();
+                    if (!peek(')')) {
+                        throw error("Unclosed group");
+                    }
+                    pos++;
+                    return group;
+                case '[':
+                    return new Literal(parseClass());
+                case '.':
+                    return new Literal(CharClass.ANY_BUT_LINE_TERMINATOR);
+                case '^':
+                    if (pos != 1) {
+                        throw error("'^' only supported at the start of the pattern");
+                    }
+                    return null;
+                case '$':
+                    if (pos != regex.length()) {
+                        throw error("'$' only supported at the end of the pattern");
+                    }
+                    return null;
+                case '\\':
+                    return parseEscape();
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                    throw error("Dangling meta character '" + c + "'");
+                default:
+                    return new Literal(CharClass.of(c));
+            }
+        }
+
+        private Node parseEscape() {
+            if (pos >= regex.length()) {
+                throw error("Unexpected end of pattern");
+            }
+            char c = regex.charAt(pos++);
+            if (c == 'Q') {
+                int end = regex.indexOf("\\E", pos);
+                String quoted = regex.substring(pos, end < 0 ? regex.length() : end);
+                pos = end < 0 ? regex.length() : end + 2;
+                List<Node> nodes = Lists.newArrayList();
+                for (int i = 0; i < quoted.length(); i++) {
+                    nodes.add(new Literal(CharClass.of(quoted.charAt(i))));
+                }
+                return new Sequence(nodes);
+            }
+            return new Literal(escapeClass(c));
+        }
+
+        private CharClass escapeClass(char c) {
+            switch (c) {
+                case 'd':
+                    return CharClass.DIGIT;
+                case 'D':
+                    return CharClass.DIGIT.negate();
+                case 'w':
+                    return CharClass.WORD;
+                case 'W':
+                    return CharClass.WORD.negate();
+                case 's':
+                    return CharClass.SPACE;
+                case 'S':
+                    return CharClass.SPACE.negate();
+                default:
+                    return CharClass.of(escapeChar(c));
+            }
+        }
+
+        private char escapeChar(char c) {
+            switch (c) {
+                case 't':
+                    return '\t';
+                case 'n':
+                    return '\n';
+                case 'r':
+                    return '\r';
+                case 'f':
+                    return '\f';
+                case 'a':
+                    return '\u0007';
+                case 'e':
+                    return '\u001B';
+                case 'x':
+                    return parseHex(2);
+                case 'u':
+                    return parseHex(4);
+                default:
+                    if (Character.isDigit(c) || c == 'k') {
+                        throw error("Backreferences not supported");
+                    }
+                    if (Character.isLetter(c)) {
+                        throw error("Escape sequence \\" + c + " not supported");
+                    }
+                    return c;
+            }
+        }
+
+        private char parseHex(int digits) {
+            if (pos + digits > regex.length()) {
+                throw error("Illegal hexadecimal escape sequence");
+            }
+            try {
+                char c = (char) Integer.parseInt(regex.substring(pos, pos + digits), 16);
+                pos += digits;
+                return c;
+            } catch (NumberFormatException e) {
+                throw error("Illegal hexadecimal escape sequence");
+            }
+        }
+
+        private CharClass parseClass() {
+            boolean negated = peek('^');
+            if (negated) {
+                pos++;
+            }
+            StringBuilder ranges = new StringBuilder();
+            boolean first = true;
+            while (pos < regex.length() && (first || !peek(']'))) {
+                first = false;
+                int from = parseClassChar(ranges);
+                if (from < 0) {
+                    // predefined class, already added
+                    continue;
+                }
+                int to = from;
+                if (peek('-') && pos + 1 < regex.length() && regex.charAt(pos + 1) != ']') {
+                    pos++;
+                    to = parseClassChar(null);
+                    if (to < from) {
+                        throw error("Illegal character range");
+                    }
+                }
+                ranges.append((char) from).append((char) to);
+            }
+            if (!peek(']')) {
+                throw error("Unclosed character class");
+            }
+            pos++;
+            char[] chars = new char[ranges.length()];
+            ranges.getChars(0, chars.length, chars, 0);
+            return new CharClass(negated, chars);
+        }
+
+        /**
+         * Parses a single character of a class. Predefined classes are
+         * appended to {@code ranges} and reported as -1.
+         */
+        private int parseClassChar(StringBuilder ranges) {
+            char c = regex.charAt(pos++);
+            if (c == '[' || (c == '&' && peek('&'))) {
+                throw error("Nested classes and intersections not supported");
+            }
+            if (c != '\\') {
+                return c;
+            }
+            if (pos >= regex.length()) {
+                throw error("Unexpected end of pattern");
+            }
+            c = regex.charAt(pos++);
+            if (c == 'd' || c == 'w' || c == 's') {
+                if (ranges == null) {
+                    throw error("Illegal character range");
+                }
+                CharClass predefined = escapeClass(c);
+                ranges.append(predefined.ranges);
+                return -1;
+            }
+            if (c == 'D' || c == 'W' || c == 'S') {
+                throw error("Negated classes inside a character class not supported");
+            }
+            return escapeChar(c);
+        }
+
+        private boolean peek(char c) {
+            return pos < regex.length() && regex.charAt(pos) == c;
+        }
+
+        private PatternSyntaxException error(String description) {
+            return new PatternSyntaxException(description, regex, pos - 1);
+        }
+    }
+
+    /**
+     * Compiles a syntax tree to the instructions of the automaton.
+     */
+    private static final class Compiler {
+        private final String regex;
+        int size;
+        int[] op = new int[16];
+        int[] x = new int[16];
+        int[] y = new int[16];
+        CharClass[] classes = new CharClass[16];
+
+        Compiler(String regex) {
+            this.regex = regex;
+        }
+
+        int add(int opcode, CharClass chars) {
+            if (size == MAX_INSTRUCTIONS) {
+                throw new PatternSyntaxException("Pattern too large", regex, -1);
+            }
+            if (size == op.length) {
+                op = Arrays.copyOf(op, size * 2);
+                x = Arrays.copyOf(x, size * 2);
+                y = Arrays.copyOf(y, size * 2);
+                classes = Arrays.copyOf(classes, size * 2);
+            }
+            op[size] = opcode;
+            classes[size] = chars;
+            return size++;
+        }
+
+        void emit(Node node) {
+            if (node instanceof Literal) {
+                add(CHAR, ((Literal) node).chars);
+            } else if (node instanceof Sequence) {
+                for (Node n : ((Sequence) node).nodes) {
+                    emit(n);
+                }
+            } else if (node instanceof Alternation) {
+                List<Node> nodes = ((Alternation) node).nodes;
+                int[] jumps = new int[nodes.size() - 1];
+                for (int i = 0; i < jumps.length; i++) {
+                    int split = add(SPLIT, null);
+                    x[split] = size;
+                    emit(nodes.get(i));
+                    jumps[i] = add(JMP, null);
+                    y[split] = size;
+                }
+                emit(nodes.get(jumps.length));
+                for (int jump : jumps) {
+                    x[jump] = size;
+                }
+            } else if (node instanceof Repetition) {
+                Repetition rep = (Repetition) node;
+                for (int i = 0; i < rep.min; i++) {
+                    emit(rep.node);
+                }
+                if (rep.max == -1) {
+                    int split = add(SPLIT, null);
+                    x[split] = size;
+                    emit(rep.node);
+                    int jump = add(JMP, null);
+                    x[jump] = split;
+                    y[split] = size;
+                } else {
+                    int[] splits = new int[rep.max - rep.min];
+                    for (int i = 0; i < splits.length; i++) {
+                        splits[i] = add(SPLIT, null);
+                        x[splits[i]] = size;
+                        emit(rep.node);
+                    }
+                    for (int split : splits) {
+                        y[split] = size;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -31,12 +31,15 @@ public class MergeUserValidator implements MergeValidationListener {
 
     private final Provider<ReviewDb> reviewDb;
     private final ModuleOwnerConfigCache configFactory;
+    private final ModuleOwnerEvaluator evaluator;
 
     @Inject
     MergeUserValidator(Provider<ReviewDb> reviewDb,
-                       ModuleOwnerConfigCache configFactory) {
+                       ModuleOwnerConfigCache configFactory,
+                       ModuleOwnerEvaluator evaluator) {
         this.reviewDb = reviewDb;
         this.configFactory = configFactory;
+        this.evaluator = evaluator;
     }
 
     /**
@@ -49,7 +52,7 @@ public class MergeUserValidator implements MergeValidationListener {
             throws MergeValidationException {
         ModuleOwnerConfig config = configFactory.get(destProject.getProject().getNameKey());
         if (config != null && config.isEnabled() &&
-                !config.isModuleOwner(caller.getAccountId(), repo, commit)) {
+                !evaluator.isModuleOwner(config, caller.getAccountId(), repo, commit)) {
             throw new MergeValidationException(DENY_STATUS);
         }
 
@@ -1,11 +1,13 @@
 package com.googlesource.gerrit.plugins.moduleowner;
 
 import com.google.gerrit.common.EventListener;
+import com.google.gerrit.extensions.events.AccountIndexedListener;
 import com.google.gerrit.extensions.events.UsageDataPublishedListener;
 import com.google.gerrit.extensions.registration.DynamicSet;
 import com.google.gerrit.extensions.restapi.RestApiModule;
 import com.google.gerrit.extensions.webui.TopMenu;
 import com.google.gerrit.extensions.config.FactoryModule;
+import com.google.gerrit.lifecycle.LifecycleModule;
 import com.google.gerrit.server.git.validators.MergeValidationListener;
 
 import static com.google.gerrit.server.change.RevisionResource.REVISION_KIND;
@@ -17,6 +19,7 @@ class Module extends FactoryModule {
       DynamicSet.bind(binder(), EventListener.class).to(ChangeEventListener.class);
       DynamicSet.bind(binder(), UsageDataPublishedListener.class).to(UsageDataListener.class);
       DynamicSet.bind(binder(), TopMenu.class).to(OwnersTopMenu.class);
+      DynamicSet.bind(binder(), AccountIndexedListener.class).to(ActiveOwnerIndex.class);
 
       // TODO finish implementation of DynamicSubmit and re-enable
 //      bind(CapabilityDefinition.class)
@@ -30,8 +33,21 @@ class Module extends FactoryModule {
           }
       });
       install(ModuleOwnerConfigCacheImpl.module());
+      install(ChangedFilesCache.module());
+      install(GroupMembersCache.module());
+
+      install(new LifecycleModule() {
+          @Override
+          protected void configure() {
+              listener().to(OwnerResolver.class);
+              listener().to(ChangeEventQueue.class);
+              listener().to(ReviewerQueue.class);
+              listener().to(ModuleOwnerConfigCacheImpl.ConfigLoader.class);
+              // after the queues used to load configs
+              listener().to(ConfigWarmer.class);
+          }
+      });
 
-      factory(ModuleOwnerConfig.Factory.class);
       factory(ReviewersByOwnership.Factory.class);
   }
 }
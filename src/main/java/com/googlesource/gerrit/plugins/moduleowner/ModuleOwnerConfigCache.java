@@ -14,6 +14,20 @@ public interface ModuleOwnerConfigCache {
      */
     ModuleOwnerConfig get(Project.NameKey projectName);
 
+    /**
+     * Reloads the module owner config for a given project in the background
+     * if it changed. The current config is returned until the reload is done.
+     * @param projectName project name
+     */
+    void refresh(Project.NameKey projectName);
+
+    /**
+     * Refreshes the module owner config of a given project, and updates the
+     * cached configs of all projects inheriting from it.
+     * @param projectName project name
+     */
+    void refreshWithChildren(Project.NameKey projectName);
+
     /**
      * Evicts the module owner config for a given project.
      * @param projectName project name
@@ -2,11 +2,21 @@ package com.googlesource.gerrit.plugins.moduleowner;
 
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.gerrit.extensions.events.LifecycleListener;
 import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
 import com.google.gerrit.extensions.registration.DynamicSet;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.reviewdb.client.RefNames;
 import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.project.ProjectCache;
 import com.google.inject.Inject;
 import com.google.inject.Module;
 import com.google.inject.Singleton;
@@ -14,7 +24,15 @@ import com.google.inject.name.Named;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Cache ModuleOwnerConfig to avoid recomputations.
@@ -31,7 +49,11 @@ public class ModuleOwnerConfigCacheImpl implements ModuleOwnerConfigCache {
             @Override
             protected void configure() {
             cache(BYID_NAME, Project.NameKey.class, ModuleOwnerConfig.class)
+                    .maximumWeight(32 << 20)
+                    .weigher(ConfigWeigher.class)
                     .loader(ConfigLoader.class);
+            persist(ModuleOwnerConfig.OWNERSHIP_CACHE, String.class, OwnershipData.class)
+                    .expireAfterWrite(ModuleOwnerConfig.OWNERSHIP_MAX_AGE, TimeUnit.MILLISECONDS);
 
             DynamicSet.bind(binder(), GitReferenceUpdatedListener.class)
                     .to(ModuleOwnerConfigCacheImpl.ConfigListener.class);
@@ -42,25 +64,62 @@ public class ModuleOwnerConfigCacheImpl implements ModuleOwnerConfigCache {
         };
     }
 
+    private static final String CONFIG_RELOAD_CHILDREN = "reloadChildren";
+
     private LoadingCache<Project.NameKey, ModuleOwnerConfig> configCache;
+    private final ChildIndex children;
+    private final boolean reloadChildren;
 
     @Inject
     public ModuleOwnerConfigCacheImpl(
-            @Named(BYID_NAME) LoadingCache<Project.NameKey, ModuleOwnerConfig> configCache) {
+            @Named(BYID_NAME) LoadingCache<Project.NameKey, ModuleOwnerConfig> configCache,
+            ChildIndex children,
+            PluginConfigFactory pluginConfigFactory) {
         log.debug("Initializing module owner config cache...");
         this.configCache = configCache;
+        this.children = children;
+        this.reloadChildren = pluginConfigFactory.getFromGerritConfig(ModuleOwnerConfig.PLUGIN_NAME)
+                .getBoolean(CONFIG_RELOAD_CHILDREN, true);
     }
 
     @Override
     public ModuleOwnerConfig get(Project.NameKey projectName) {
         try {
-            return configCache.get(projectName);
+            ModuleOwnerConfig config = configCache.get(projectName);
+            if (config.getOwnership().isExpired()) {
+                // keep using the expired ownership until it is resolved again
+                configCache.refresh(projectName);
+            }
+            return config;
         } catch (ExecutionException e) {
             log.error("Could not get config for project: {}", projectName.get());
             return null;
         }
     }
 
+    @Override
+    public void refresh(Project.NameKey projectName) {
+        // refresh() loads in the calling thread if there is no config yet
+        if (configCache.getIfPresent(projectName) != null) {
+            configCache.refresh(projectName);
+        }
+    }
+
+    @Override
+    public void refreshWithChildren(Project.NameKey projectName) {
+        refresh(projectName);
+        Set<Project.NameKey> inheriting = children.get(projectName);
+        log.debug("Updating module owner configs inheriting from {}: {}",
+                  projectName, inheriting);
+        for (Project.NameKey child : inheriting) {
+            if (reloadChildren) {
+                refresh(child);
+            } else {
+                evict(child);
+            }
+        }
+    }
+
     @Override
     public void evict(Project.NameKey projectName) {
         configCache.invalidate(projectName);
@@ -79,24 +138,153 @@ public class ModuleOwnerConfigCacheImpl implements ModuleOwnerConfigCache {
         public void onGitReferenceUpdated(Event event) {
             if (event.getRefName().equals(RefNames.REFS_CONFIG)) {
                 Project.NameKey project = new Project.NameKey(event.getProjectName());
-                // TODO check to see if there are changes before evicting config
-                cache.evict(project);
-                log.debug("Updating module owner config for project: {}", project);
+                cache.refreshWithChildren(project);
+                log.debug("Refreshing module owner config for project: {}", project);
+            }
+        }
+    }
+
+    /**
+     * Index of the projects whose cached config inherits from a project, i.e.
+     * of the direct and indirect children of each parent project.
+     *
+     * Projects are added when their config is loaded and never removed; an
+     * index entry for a project that is no longer cached, or no longer
+     * inherits from the parent, only causes a cheap revision check.
+     */
+    @Singleton
+    static class ChildIndex {
+        private final ConcurrentMap<Project.NameKey, Set<Project.NameKey>> children =
+                new ConcurrentHashMap<>();
+
+        void add(ConfigRevision revision) {
+            List<Project.NameKey> projects = revision.getProjects();
+            Project.NameKey child = projects.get(0);
+            for (Project.NameKey parent : projects.subList(1, projects.size())) {
+                Set<Project.NameKey> set = children.get(parent);
+                if (set == null) {
+                    Set<Project.NameKey> created = Sets.newConcurrentHashSet();
+                    set = children.putIfAbsent(parent, created);
+                    if (set == null) {
+                        set = created;
+                    }
+                }
+                set.add(child);
             }
         }
+
+        Set<Project.NameKey> get(Project.NameKey parent) {
+            Set<Project.NameKey> set = children.get(parent);
+            return set != null
+                    ? ImmutableSet.copyOf(set) : Collections.<Project.NameKey>emptySet();
+        }
     }
 
-    static class ConfigLoader extends CacheLoader<Project.NameKey, ModuleOwnerConfig> {
-        ModuleOwnerConfig.Factory configFactory;
+    /**
+     * Loads configs, and reloads them on a plugin queue when their
+     * {@link ConfigRevision} changed.
+     */
+    @Singleton
+    static class ConfigLoader extends CacheLoader<Project.NameKey, ModuleOwnerConfig>
+            implements LifecycleListener {
+        private static final String CONFIG_RELOAD_THREADS = "reloadThreads";
+        private static final int DEFAULT_RELOAD_THREADS = 1;
+
+        private final ModuleOwnerConfigFactory configFactory;
+        private final ChildIndex children;
+        private final ProjectCache projectCache;
+        private final GitRepositoryManager repoManager;
+        private final WorkQueue workQueue;
+        private final int threads;
+
+        private volatile WorkQueue.Executor executor;
 
         @Inject
-        public ConfigLoader(ModuleOwnerConfig.Factory configFactory) {
+        public ConfigLoader(ModuleOwnerConfigFactory configFactory,
+                            ChildIndex children,
+                            ProjectCache projectCache,
+                            GitRepositoryManager repoManager,
+                            WorkQueue workQueue,
+                            PluginConfigFactory pluginConfigFactory) {
             this.configFactory = configFactory;
+            this.children = children;
+            this.projectCache = projectCache;
+            this.repoManager = repoManager;
+            this.workQueue = workQueue;
+            this.threads = pluginConfigFactory.getFromGerritConfig(ModuleOwnerConfig.PLUGIN_NAME)
+                    .getInt(CONFIG_RELOAD_THREADS, DEFAULT_RELOAD_THREADS);
+        }
+
+        @Override
+        public void start() {
+            executor = workQueue.createQueue(Math.max(threads, 1), "ModuleOwner-ConfigReload");
+        }
+
+        @Override
+        public void stop() {
+            WorkQueue.Executor e = executor;
+            executor = null;
+            if (e != null) {
+                e.unregisterWorkQueue();
+                e.shutdownNow();
+            }
         }
 
         @Override
         public ModuleOwnerConfig load(Project.NameKey nameKey) throws Exception {
-            return configFactory.create(nameKey);
+            return create(nameKey);
+        }
+
+        private ModuleOwnerConfig create(Project.NameKey nameKey) {
+            ModuleOwnerConfig config = configFactory.create(nameKey);
+            children.add(config.getRevision());
+            return config;
+        }
+
+        @Override
+        public ListenableFuture<ModuleOwnerConfig> reload(final Project.NameKey nameKey,
+                                                          final ModuleOwnerConfig oldConfig) {
+            ListenableFutureTask<ModuleOwnerConfig> task = ListenableFutureTask.create(
+                    new Callable<ModuleOwnerConfig>() {
+                @Override
+                public ModuleOwnerConfig call() {
+                    ConfigRevision revision =
+                            ConfigRevision.read(projectCache, repoManager, nameKey);
+                    if (revision.isSameAs(oldConfig.getRevision())
+                            && !oldConfig.getOwnership().isExpired()) {
+                        log.debug("Module owner config of {} is unchanged", nameKey);
+                        return oldConfig;
+                    }
+                    log.debug("Reloading module owner config of {}", nameKey);
+                    return create(nameKey);
+                }
+            });
+            WorkQueue.Executor e = executor;
+            try {
+                if (e != null) {
+                    e.execute(task);
+                    return task;
+                }
+            } catch (RejectedExecutionException ignored) {
+                // plugin is stopping, reload in the calling thread
+            }
+            task.run();
+            return task;
+        }
+    }
+
+    /**
+     * Approximates the memory used by a config snapshot in bytes. Only the
+     * state of the snapshot itself is counted; the ownership and matcher it
+     * references are shared by all projects with the same config and are
+     * bounded by {@link ModuleOwnerConfigFactory}.
+     */
+    static class ConfigWeigher implements Weigher<Project.NameKey, ModuleOwnerConfig> {
+        @Override
+        public int weigh(Project.NameKey key, ModuleOwnerConfig config) {
+            int size = 256 + 2 * key.get().length(); // snapshot, revision and name
+            size += 64 * config.getRevision().getProjects().size(); // blob ids
+            return size + 32; // references to the shared ownership and matcher
         }
     }
 }
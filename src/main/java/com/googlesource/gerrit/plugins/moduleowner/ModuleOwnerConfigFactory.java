@@ -0,0 +1,226 @@
+package com.googlesource.gerrit.plugins.moduleowner;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.AccountGroup;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.project.NoSuchProjectException;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.googlesource.gerrit.plugins.moduleowner.ModuleOwnerConfig.Key;
+import org.eclipse.jgit.lib.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds module owner config snapshots from the {@code moduleowner.config}
+ * of a project and its parents.
+ */
+@Singleton
+class ModuleOwnerConfigFactory {
+    private static final Logger log = LoggerFactory.getLogger(ModuleOwnerConfigFactory.class);
+
+    private static final String CONFIG_USER = "user";
+    private static final String CONFIG_GROUP = "group";
+    private static final String CONFIG_PATH = "path";
+    private static final String CONFIG_GLOB = "glob";
+    private static final String CONFIG_REGEX_ENGINE = "regexEngine";
+    private static final String CONFIG_UNRESOLVED_MAX_AGE = "unresolvedMaxAge";
+    private static final String CONFIG_SHARED_MEMORY_LIMIT = "sharedMemoryLimit";
+
+    private final PluginConfigFactory configFactory;
+    private final ProjectCache projectCache;
+    private final GitRepositoryManager repoManager;
+    private final OwnerResolver ownerResolver;
+    private final ActiveOwnerIndex activeOwners;
+    private final Cache<String, OwnershipData> ownershipCache;
+    private final long ownershipMaxAge;
+    private final long unresolvedMaxAge;
+
+    private static final long DEFAULT_SHARED_MEMORY_LIMIT = 32 << 20;
+
+    /**
+     * Ownership in use by snapshots, by hash of the effective config. Projects
+     * with the same effective config, e.g. projects inheriting everything
+     * from a common parent, share one ownership and its compiled matcher,
+     * which is weighed here once rather than in every snapshot.
+     */
+    private final Cache<String, OwnershipData> shared;
+
+    @Inject
+    ModuleOwnerConfigFactory(PluginConfigFactory configFactory,
+                             ProjectCache projectCache,
+                             GitRepositoryManager repoManager,
+                             OwnerResolver ownerResolver,
+                             ActiveOwnerIndex activeOwners,
+                             @Named(ModuleOwnerConfig.OWNERSHIP_CACHE)
+                                     Cache<String, OwnershipData> ownershipCache,
+                             @GerritServerConfig Config gerritConfig) {
+        this.configFactory = configFactory;
+        this.projectCache = projectCache;
+        this.repoManager = repoManager;
+        this.ownerResolver = ownerResolver;
+        this.activeOwners = activeOwners;
+        this.ownershipCache = ownershipCache;
+        // same age as the persistent cache, so that snapshots and cached
+        // ownership are resolved again together
+        this.ownershipMaxAge = ConfigUtil.getTimeUnit(gerritConfig, "cache",
+                ModuleOwnerConfig.PLUGIN_NAME + "." + ModuleOwnerConfig.OWNERSHIP_CACHE,
+                "maxAge", ModuleOwnerConfig.OWNERSHIP_MAX_AGE, TimeUnit.MILLISECONDS);
+        this.unresolvedMaxAge = Math.min(ownershipMaxAge, ConfigUtil.getTimeUnit(gerritConfig,
+                "plugin", ModuleOwnerConfig.PLUGIN_NAME, CONFIG_UNRESOLVED_MAX_AGE,
+                ModuleOwnerConfig.UNRESOLVED_MAX_AGE, TimeUnit.MILLISECONDS));
+        this.shared = CacheBuilder.newBuilder()
+                .weakValues()
+                .maximumWeight(configFactory.getFromGerritConfig(ModuleOwnerConfig.PLUGIN_NAME)
+                        .getLong(CONFIG_SHARED_MEMORY_LIMIT, DEFAULT_SHARED_MEMORY_LIMIT))
+                .weigher(new OwnershipWeigher())
+                .build();
+    }
+
+    /**
+     * @param projectName project to build the config of
+     * @return snapshot of the current module owner config of the project
+     */
+    ModuleOwnerConfig create(Project.NameKey projectName) {
+        log.debug("Initializing module owner config for {}", projectName);
+
+        // read before the config, so that a concurrent update causes a reload
+        ConfigRevision revision = ConfigRevision.read(projectCache, repoManager, projectName);
+        OwnershipData ownership = loadOwnership(projectName);
+        if (!ownership.getUnresolved().isEmpty()) {
+            log.warn("Could not resolve in project {}: {}", projectName, ownership.getUnresolved());
+        }
+        activeOwners.addAll(ownership.getUsers());
+
+        RegexEngine engine = configFactory.getFromGerritConfig(ModuleOwnerConfig.PLUGIN_NAME)
+                .getEnum(CONFIG_REGEX_ENGINE, RegexEngine.JAVA);
+        OwnershipMatcher matcher = ownership.getMatcher(engine);
+        for (Map.Entry<String, String> invalid : matcher.getInvalidPatterns().entrySet()) {
+            log.warn("Ignoring path pattern {} in project {} ({} engine): {}",
+                     invalid.getKey(), projectName, engine, invalid.getValue());
+        }
+
+        int maxReviewers = 2; // TODO make this configurable
+        return new ModuleOwnerConfig(projectName, revision, ownership, matcher, maxReviewers);
+    }
+
+    /**
+     * Returns the ownership of the effective config, shared with the other
+     * snapshots of the same config or from the persistent cache if the same
+     * config was resolved before. Ownership with unresolved users or groups
+     * is shared and cached as well, but expires sooner, so that the names
+     * are retried without resolving every owner on each load. Expired
+     * ownership is resolved again.
+     */
+    private OwnershipData loadOwnership(Project.NameKey projectName) {
+        Config config = configFactory.getGlobalPluginConfig(ModuleOwnerConfig.PLUGIN_NAME);
+        try {
+            config = configFactory.getProjectPluginConfigWithInheritance(
+                    projectName, ModuleOwnerConfig.PLUGIN_NAME);
+        } catch (NoSuchProjectException e) {
+            log.error("No such project {}", projectName, e);
+        }
+
+        String key = OwnershipData.key(config);
+        OwnershipData data = shared.getIfPresent(key);
+        if (data != null && !data.isExpired()) {
+            log.debug("Sharing ownership {} with {}", key, projectName);
+            return data;
+        }
+        data = ownershipCache.getIfPresent(key);
+        if (data == null || data.isExpired()) {
+            data = resolveOwnership(config);
+            ownershipCache.put(key, data);
+        } else {
+            log.debug("Using cached ownership {} for {}", key, projectName);
+        }
+        OwnershipData existing = shared.asMap().putIfAbsent(key, data);
+        if (existing != null && existing.isExpired()
+                && shared.asMap().replace(key, existing, data)) {
+            return data;
+        }
+        return existing != null ? existing : data;
+    }
+
+    private OwnershipData resolveOwnership(Config config) {
+        OwnerResolver.Result resolved = ownerResolver.resolve(
+                config.getSubsections(CONFIG_USER), config.getSubsections(CONFIG_GROUP));
+        Map<Key, List<String>> idToPatterns = Maps.newHashMap();
+
+        for (Map.Entry<String, Account.Id> user : resolved.accounts.entrySet()) {
+            List<String> pathPatterns = getPathPatterns(config, CONFIG_USER, user.getKey());
+            ModuleOwnerConfig.sortPatterns(pathPatterns);
+            idToPatterns.put(Key.user(user.getValue()), pathPatterns);
+            log.debug("Processing user: {} ({}) with patterns: {}",
+                      user.getKey(), user.getValue(), pathPatterns);
+        }
+
+        for (Map.Entry<String, AccountGroup.UUID> group : resolved.groups.entrySet()) {
+            List<String> pathPatterns = getPathPatterns(config, CONFIG_GROUP, group.getKey());
+            ModuleOwnerConfig.sortPatterns(pathPatterns);
+            idToPatterns.put(Key.group(group.getValue()), pathPatterns);
+            log.debug("Processing group: {} ({}) with patterns: {}",
+                      group.getKey(), group.getValue(), pathPatterns);
+        }
+        long maxAge = resolved.unresolved.isEmpty() ? ownershipMaxAge : unresolvedMaxAge;
+        return new OwnershipData(idToPatterns, resolved.unresolved,
+                                 System.currentTimeMillis() + maxAge);
+    }
+
+    /**
+     * Returns the regex and glob path patterns of a user or group; globs are
+     * marked with {@link GlobPattern#PREFIX}.
+     */
+    private static List<String> getPathPatterns(Config config, String section,
+                                                String subsection) {
+        List<String> patterns = Lists.newArrayList(
+                config.getStringList(section, subsection, CONFIG_PATH));
+        for (String glob : config.getStringList(section, subsection, CONFIG_GLOB)) {
+            patterns.add(GlobPattern.PREFIX + glob);
+        }
+        return patterns;
+    }
+
+    /**
+     * Approximates the memory used by an ownership and its compiled matcher
+     * in bytes. Owner predicates, which are added while the ownership is in
+     * use, are not counted.
+     */
+    static class OwnershipWeigher implements Weigher<String, OwnershipData> {
+        @Override
+        public int weigh(String key, OwnershipData ownership) {
+            int size = 128 + 2 * key.length();
+            Map<String, Integer> patternOwners = Maps.newHashMap();
+            for (Map.Entry<Key, ImmutableList<String>> entry
+                    : ownership.getOwnerPatterns().entrySet()) {
+                size += 64 + 8 * entry.getValue().size(); // key and list
+                for (String pattern : entry.getValue()) {
+                    Integer owners = patternOwners.get(pattern);
+                    patternOwners.put(pattern, owners == null ? 1 : owners + 1);
+                }
+            }
+            for (Map.Entry<String, Integer> pattern : patternOwners.entrySet()) {
+                // string, owners, and the compiled pattern
+                int length = pattern.getKey().length();
+                size += 40 + 2 * length + 48 + 16 * pattern.getValue() + 64 + 24 * length;
+            }
+            return size;
+        }
+    }
+}
@@ -0,0 +1,569 @@
+package com.googlesource.gerrit.plugins.moduleowner;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.AccountGroup;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.server.account.AccountCache;
+import com.google.gerrit.server.account.AccountState;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.moduleowner.ModuleOwnerConfig.Key;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.googlesource.gerrit.plugins.moduleowner.ModuleOwnerConfig.isCatchAll;
+import static com.googlesource.gerrit.plugins.moduleowner.ModuleOwnerConfig.patternLength;
+
+/**
+ * Evaluates module owner config snapshots against commits and changes.
+ *
+ * The evaluator holds no state of its own; everything it needs about a
+ * project is in the {@link ModuleOwnerConfig} passed to each call.
+ */
+@Singleton
+public class ModuleOwnerEvaluator {
+    private static final Logger log = LoggerFactory.getLogger(ModuleOwnerEvaluator.class);
+
+    private final AccountCache accountCache;
+    private final GroupMembersCache groupMembers;
+    private final ChangedFilesCache changedFiles;
+    private final ActiveOwnerIndex activeOwners;
+
+    @Inject
+    ModuleOwnerEvaluator(AccountCache accountCache,
+                         GroupMembersCache groupMembers,
+                         ChangedFilesCache changedFiles,
+                         ActiveOwnerIndex activeOwners) {
+        this.accountCache = accountCache;
+        this.groupMembers = groupMembers;
+        this.changedFiles = changedFiles;
+        this.activeOwners = activeOwners;
+    }
+
+    public boolean isModuleOwner(ModuleOwnerConfig config, Account.Id user,
+                                 Repository repo, RevCommit commit) {
+        OwnerPredicate owner = getOwnerPredicate(config, user);
+        boolean result = isPatchApproved(config, repo, commit, owner);
+        log.trace("user {} is module owner for commit {}/{}: {}",
+                  user, config.getProjectName().get(), commit.getId().getName(), result);
+        return result;
+    }
+
+    /**
+     * Checks the ownership of a commit for several users at once. Each
+     * changed file is matched once for all users.
+     *
+     * @param config config of the project
+     * @param users accounts to check
+     * @param files files changed by the commit to check
+     * @return for each account, true if it is a module owner for every file
+     */
+    public Map<Account.Id, Boolean> getModuleOwnership(ModuleOwnerConfig config,
+                                                       Collection<Account.Id> users,
+                                                       List<String> files) {
+        Map<Account.Id, Boolean> result = Maps.newHashMapWithExpectedSize(users.size());
+        if (users.isEmpty()) {
+            return result;
+        }
+
+        List<OwnerPredicate> undecided = Lists.newArrayListWithCapacity(users.size());
+        for (Account.Id user : users) {
+            OwnerPredicate owner = getOwnerPredicate(config, user);
+            if (owner.ownsAnyPattern() || files.isEmpty()) {
+                undecided.add(owner);
+            } else {
+                result.put(user, false);
+            }
+        }
+
+        OwnershipMatcher matcher = config.getMatcher();
+        final BitSet matches = new BitSet(matcher.size());
+        OwnershipMatcher.Visitor collect = new OwnershipMatcher.Visitor() {
+            @Override
+            public boolean visit(int pattern) {
+                matches.set(pattern);
+                return true;
+            }
+        };
+        for (String file : files) {
+            if (undecided.isEmpty()) {
+                break;
+            }
+            matches.clear();
+            matcher.match(file, collect);
+            for (Iterator<OwnerPredicate> it = undecided.iterator(); it.hasNext(); ) {
+                OwnerPredicate owner = it.next();
+                if (!owner.ownsAny(matches)) {
+                    log.trace("file {} does not match any pattern of: {}", file, owner);
+                    result.put(owner.getUser(), false);
+                    it.remove();
+                }
+            }
+        }
+        for (OwnerPredicate owner : undecided) {
+            result.put(owner.getUser(), true);
+        }
+        log.trace("module ownership in project {}: {}", config.getProjectName().get(), result);
+        return result;
+    }
+
+    /**
+     * Selects the module owners to add as reviewers of a commit, ranked by
+     * the number of changed files they own and then by the length of the
+     * matching patterns. Owners that only match catch-all patterns are not
+     * selected; ties are broken randomly.
+     *
+     * Users and groups are scored as units first. The scoring users are
+     * candidates right away; the groups matching a file with a pattern
+     * other than a catch-all are expanded from the best to the worst, and
+     * only while one of their members could still beat the selected owners.
+     * Candidates are scored on the groups they are a member of, with the
+     * same membership as ownership checks, so that groups only matching
+     * catch-all patterns are never expanded.
+     *
+     * @param config config of the project
+     * @param files files changed by the commit to select reviewers for
+     * @param change change of the commit, its owner is never selected
+     * @param reviewers current reviewers of the change; those who are
+     *        candidates are not selected again but count towards the
+     *        maximum number of reviewers
+     * @return the best owners to add, at most the remaining number of
+     *         reviewers, best first
+     */
+    public List<Account.Id> getModuleOwners(ModuleOwnerConfig config, List<String> files,
+                                           Change change, Set<Account.Id> reviewers) {
+        List<Map<Key, Integer>> fileMatches = getFileMatches(config, files);
+        Set<Key> owners = Sets.newHashSet();
+        for (Map<Key, Integer> keyToLength : fileMatches) {
+            owners.addAll(keyToLength.keySet());
+        }
+        Set<Key> scoring = getScoringOwners(fileMatches);
+        Account.Id changeOwner = change != null ? change.getOwner() : null;
+
+        int max = config.getMaxReviewers();
+        for (Account.Id reviewer : reviewers) {
+            if (isCandidate(reviewer, scoring, changeOwner)) {
+                max--;
+            }
+        }
+        if (max <= 0) {
+            log.debug("Already enough module owners assigned to change {} in project {}",
+                      change, config.getProjectName());
+            return Collections.emptyList();
+        }
+
+        Selection selection = new Selection(fileMatches, owners, max, changeOwner, reviewers);
+        List<Key> groups = Lists.newArrayList();
+        for (Key k : scoring) {
+            if (k.isUser()) {
+                selection.offer(k.user);
+            } else {
+                groups.add(k);
+            }
+        }
+        sortByScore(groups, fileMatches);
+
+        // owners a candidate not seen yet can belong to: the groups not
+        // expanded yet, and the owners only matching catch-all patterns
+        Set<Key> unexpanded = Sets.newHashSet(owners);
+        unexpanded.removeAll(scoring);
+        unexpanded.addAll(groups);
+        for (Key group : groups) {
+            if (selection.isFull()
+                    && compareScore(selection.worst(), score(null, unexpanded, fileMatches, 0)) < 0) {
+                // even a member of all remaining groups could not be selected
+                log.trace("not expanding groups {}", unexpanded);
+                break;
+            }
+            for (Account.Id member : groupMembers.get(group.group)) {
+                selection.offer(member);
+            }
+            unexpanded.remove(group);
+        }
+        return selection.getReviewers();
+    }
+
+    /**
+     * Returns, for each file, the users and groups owning it with the length
+     * of their longest matching pattern; catch-all patterns count as 0.
+     */
+    private List<Map<Key, Integer>> getFileMatches(ModuleOwnerConfig config,
+                                                   List<String> files) {
+        final OwnershipMatcher matcher = config.getMatcher();
+        List<Map<Key, Integer>> fileMatches = Lists.newArrayListWithCapacity(files.size());
+        for (String file : files) {
+            final Map<Key, Integer> keyToLength = Maps.newHashMap();
+            matcher.match(file, new OwnershipMatcher.Visitor() {
+                @Override
+                public boolean visit(int pattern) {
+                    // found match; patterns are visited from longest to shortest
+                    String patternString = matcher.getPattern(pattern);
+                    int length = isCatchAll(patternString) ? 0 : patternLength(patternString);
+                    for (Key k : matcher.getOwners(pattern)) {
+                        if (!keyToLength.containsKey(k)) {
+                            keyToLength.put(k, length);
+                        }
+                    }
+                    return true;
+                }
+            });
+            if (!keyToLength.isEmpty()) {
+                fileMatches.add(keyToLength);
+            }
+        }
+        return fileMatches;
+    }
+
+    /**
+     * Returns the users and groups matching at least one file with a pattern
+     * other than a catch-all.
+     */
+    private static Set<Key> getScoringOwners(List<Map<Key, Integer>> fileMatches) {
+        Set<Key> scoring = Sets.newHashSet();
+        for (Map<Key, Integer> keyToLength : fileMatches) {
+            for (Map.Entry<Key, Integer> entry : keyToLength.entrySet()) {
+                if (entry.getValue() > 0) {
+                    scoring.add(entry.getKey());
+                }
+            }
+        }
+        return scoring;
+    }
+
+    /**
+     * @return true if the user would be a candidate: a scoring user or a
+     *         member of a scoring group, active and not the change owner
+     */
+    private boolean isCandidate(Account.Id user, Set<Key> scoring, Account.Id changeOwner) {
+        if (user.equals(changeOwner)) {
+            return false;
+        }
+        // check ownership first, so that only owners are added to the index
+        boolean owner = scoring.contains(Key.user(user));
+        for (Iterator<AccountGroup.UUID> it = getGroups(user).iterator();
+                !owner && it.hasNext(); ) {
+            owner = scoring.contains(Key.group(it.next()));
+        }
+        return owner && activeOwners.isActive(user);
+    }
+
+    /**
+     * Sorts groups from the best to the worst score as a unit, that is the
+     * score every member has at least.
+     */
+    private static void sortByScore(List<Key> groups, List<Map<Key, Integer>> fileMatches) {
+        final Map<Key, Match> units = Maps.newHashMapWithExpectedSize(groups.size());
+        for (Key group : groups) {
+            units.put(group, score(null, Collections.singleton(group), fileMatches, 0));
+        }
+        Collections.sort(groups, new Comparator<Key>() {
+            @Override
+            public int compare(Key k1, Key k2) {
+                return compareScore(units.get(k1), units.get(k2));
+            }
+        });
+    }
+
+    /**
+     * Scores an owner of the given users and groups: each file counts once,
+     * with the longest pattern of these owners matching it.
+     *
+     * @param user the owner, null to score the users and groups as a unit
+     */
+    private static Match score(Account.Id user, Set<Key> keys,
+                               List<Map<Key, Integer>> fileMatches, int order) {
+        Match match = new Match(user, order);
+        for (Map<Key, Integer> keyToLength : fileMatches) {
+            int length = -1;
+            for (Map.Entry<Key, Integer> entry : keyToLength.entrySet()) {
+                if (entry.getValue() > length && keys.contains(entry.getKey())) {
+                    length = entry.getValue();
+                }
+            }
+            if (length >= 0) {
+                match.addFile(length);
+            }
+        }
+        return match;
+    }
+
+    /**
+     * Best candidates seen so far, kept in a bounded heap. Each candidate
+     * gets a random order, so that ties between equivalent owners are broken
+     * randomly.
+     */
+    private final class Selection {
+        private final List<Map<Key, Integer>> fileMatches;
+        private final Set<Key> owners;
+        private final int max;
+        private final Account.Id changeOwner;
+        private final Set<Account.Id> reviewers;
+        private final Set<Account.Id> seen = Sets.newHashSet();
+        private final PriorityQueue<Match> best;
+
+        Selection(List<Map<Key, Integer>> fileMatches, Set<Key> owners, int max,
+                  Account.Id changeOwner, Set<Account.Id> reviewers) {
+            this.fileMatches = fileMatches;
+            this.owners = owners;
+            this.max = max;
+            this.changeOwner = changeOwner;
+            this.reviewers = reviewers;
+            this.best = new PriorityQueue<>(max + 1, Collections.reverseOrder(MATCH_COMPARE));
+        }
+
+        void offer(Account.Id user) {
+            if (!seen.add(user) || user.equals(changeOwner) || reviewers.contains(user)
+                    || !activeOwners.isActive(user)) {
+                return;
+            }
+            Set<AccountGroup.UUID> groups = getGroups(user);
+            Set<Key> userKeys = Sets.newHashSet();
+            for (Key k : owners) {
+                if (k.isUser() ? k.user.equals(user) : groups.contains(k.group)) {
+                    userKeys.add(k);
+                }
+            }
+            best.add(score(user, userKeys, fileMatches, ThreadLocalRandom.current().nextInt()));
+            if (best.size() > max) {
+                best.poll();
+            }
+        }
+
+        boolean isFull() {
+            return best.size() >= max;
+        }
+
+        Match worst() {
+            return best.peek();
+        }
+
+        List<Account.Id> getReviewers() {
+            List<Match> selected = Lists.newArrayList(best);
+            Collections.sort(selected, MATCH_COMPARE);
+            List<Account.Id> result = Lists.newArrayListWithCapacity(selected.size());
+            for (Match match : selected) {
+                result.add(match.user);
+            }
+            log.trace("selected reviewers {}", selected);
+            return result;
+        }
+    }
+
+    /**
+     * Orders scores from the best to the worst, regardless of the order of
+     * the matches.
+     */
+    private static int compareScore(Match m1, Match m2) {
+        // reverse sort (high to low)
+        if (m1.fileCount != m2.fileCount) {
+            return m2.fileCount - m1.fileCount;
+        }
+        return m2.sumPatternLength - m1.sumPatternLength;
+    }
+
+    /**
+     * Orders matches from the best to the worst.
+     */
+    private static final Comparator<Match> MATCH_COMPARE = new Comparator<Match>() {
+        @Override
+        public int compare(Match m1, Match m2) {
+            int c = compareScore(m1, m2);
+            return c != 0 ? c : Integer.compare(m1.order, m2.order);
+        }
+    };
+
+    private OwnerPredicate getOwnerPredicate(ModuleOwnerConfig config, Account.Id user) {
+        return config.getOwnerPredicate(user, getGroups(user));
+    }
+
+    /**
+     * Returns the internal groups of a user, including the groups it is a
+     * member of through included groups, as {@link GroupMembersCache}
+     * expands them. Every ownership decision uses this membership, so that
+     * an owner selected as reviewer also counts as owner when voting.
+     */
+    private Set<AccountGroup.UUID> getGroups(Account.Id user) {
+        AccountState state = accountCache.get(user);
+        if (state == null) {
+            return Collections.emptySet();
+        }
+        return groupMembers.getIncludingGroups(state.getInternalGroups());
+    }
+
+    public Map<Account, List<String>> getPatternMap(ModuleOwnerConfig config) {
+        Map<Account.Id, List<String>> idMap = Maps.newHashMap();
+
+        for (Map.Entry<Key, ImmutableList<String>> entry
+                : config.getOwnership().getOwnerPatterns().entrySet()) {
+            Key key = entry.getKey();
+            if (key.isUser()) {
+                List<String> existingPatterns = idMap.get(key.user);
+                if (existingPatterns == null) {
+                    existingPatterns = Lists.newArrayList(entry.getValue());
+                    idMap.put(key.user, existingPatterns);
+                } else {
+                    existingPatterns.addAll(entry.getValue());
+                }
+            } else {
+                for (Account.Id user : groupMembers.get(key.group)) {
+                    List<String> existingPatterns = idMap.get(user);
+                    if (existingPatterns == null) {
+                        existingPatterns = Lists.newArrayList(entry.getValue());
+                        idMap.put(user, existingPatterns);
+                    } else {
+                        existingPatterns.addAll(entry.getValue());
+                    }
+                }
+            }
+        }
+
+        Map<Account, List<String>> userMap = Maps.newHashMapWithExpectedSize(idMap.size());
+        for (Map.Entry<Account.Id, List<String>> entry : idMap.entrySet()) {
+            // TODO remove duplicates in a better way
+            List<String> patterns = Lists.newArrayList(Sets.newHashSet(entry.getValue()));
+            userMap.put(accountCache.get(entry.getKey()).getAccount(), patterns);
+        }
+        return userMap;
+    }
+
+    /**
+     * Ensures that every file changed by a commit matches at least one pattern
+     * owned by the user.
+     *
+     * If the changed files are not cached yet, they are streamed from a tree
+     * diff and the check stops at the first file the user does not own.
+     * Changed directories which the user owns entirely, or not at all, are
+     * decided without walking them. The files are only cached once the whole
+     * diff was read. Merge commits are compared to their auto-merge and
+     * always go through the cache.
+     *
+     * @param config config of the project
+     * @param repo repository of the commit
+     * @param commit commit to check
+     * @param owner compiled ownership of the user
+     * @return true if every file matches, false otherwise
+     */
+    private boolean isPatchApproved(ModuleOwnerConfig config, Repository repo,
+                                    RevCommit commit, OwnerPredicate owner) {
+        List<String> files = changedFiles.getIfPresent(config.getProjectName(), commit);
+        if (files == null && commit.getParentCount() <= 1) {
+            try (ChangedPathWalk walk =
+                         new ChangedPathWalk(repo, commit, subtreeFilter(config, owner))) {
+                List<String> walked = Lists.newArrayList();
+                String file;
+                while ((file = walk.next()) != null) {
+                    if (!isFileApproved(config, file, owner)) {
+                        return false;
+                    }
+                    walked.add(file);
+                }
+                if (walk.isDenied()) {
+                    log.trace("directory not owned by: {}", owner);
+                    return false;
+                }
+                if (!walk.isIncomplete()) {
+                    changedFiles.put(config.getProjectName(), commit, walked);
+                }
+                log.trace("patch approved");
+                return true;
+            } catch (IOException e) {
+                log.warn("Could not walk commit {} in {}",
+                         commit.getName(), config.getProjectName(), e);
+            }
+        }
+        if (files == null) {
+            files = changedFiles.get(config.getProjectName(), repo, commit);
+        }
+        return isPatchApproved(config, files, owner);
+    }
+
+    /**
+     * Ensures that every file matches at least one pattern owned by the user.
+     *
+     * @param config config of the project
+     * @param files list of files to check
+     * @param owner compiled ownership of the user
+     * @return true if every file matches, false otherwise
+     */
+    private boolean isPatchApproved(ModuleOwnerConfig config, List<String> files,
+                                    OwnerPredicate owner) {
+        log.trace("files: {}, owner: {}", files, owner);
+        for (String file : files) {
+            if (!isFileApproved(config, file, owner)) {
+                return false;
+            }
+        }
+        log.trace("patch approved");
+        return true;
+    }
+
+    private ChangedPathWalk.SubtreeFilter subtreeFilter(final ModuleOwnerConfig config,
+                                                        final OwnerPredicate owner) {
+        return new ChangedPathWalk.SubtreeFilter() {
+            @Override
+            public OwnershipMatcher.SubtreeOwnership getSubtreeOwnership(String directory) {
+                return config.getMatcher().getSubtreeOwnership(directory, owner);
+            }
+        };
+    }
+
+    private boolean isFileApproved(ModuleOwnerConfig config, String file,
+                                   OwnerPredicate owner) {
+        // the predicate stops the scan at the first owned pattern
+        if (!owner.ownsAnyPattern() || config.getMatcher().match(file, owner)) {
+            log.trace("file {} does not match any pattern of: {}", file, owner);
+            return false;
+        }
+        return true;
+    }
+
+    private static final class Match {
+        final Account.Id user;
+        final int order;
+
+        int fileCount;
+        int sumPatternLength;
+
+        Match(Account.Id user, int order) {
+            this.user = user;
+            this.order = order;
+        }
+
+        /**
+         * @param patternLength length of the longest matching pattern, 0 for
+         *        the super module owner (".*" or "**") pattern
+         */
+        void addFile(int patternLength) {
+            fileCount++;
+            sumPatternLength += patternLength;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("user", user)
+                    .add("fileCount", fileCount)
+                    .add("sumPatternLength", sumPatternLength)
+                    .toString();
+        }
+    }
+}
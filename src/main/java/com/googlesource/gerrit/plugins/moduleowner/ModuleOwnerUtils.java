@@ -8,6 +8,7 @@ import com.google.gerrit.server.account.AccountResolver;
 import com.google.gerrit.server.data.AccountAttribute;
 import com.google.gwtorm.server.OrmException;
 import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.diff.DiffEntry;
 import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Repository;
@@ -18,6 +19,7 @@ import org.eclipse.jgit.treewalk.TreeWalk;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -34,8 +36,11 @@ public class ModuleOwnerUtils {
      * @param repository
      * @param commit
      * @return list of files changed in a commit
+     * @throws IOException if the commit or its trees cannot be read
+     * @throws GitAPIException if the trees cannot be compared
      */
-    public static List<String> getFilesInCommit(Repository repository, RevCommit commit) {
+    public static List<String> listFilesInCommit(Repository repository, RevCommit commit)
+            throws IOException, GitAPIException {
         List<String> files = Lists.newArrayList();
         RevWalk rw = new RevWalk(repository);
         try {
@@ -85,8 +90,6 @@ public class ModuleOwnerUtils {
                     }
                 } // end adapted
             }
-        } catch (Throwable t) {
-            log.error("{} failed to determine files in commit!", repository, t);
         } finally {
             rw.dispose();
         }
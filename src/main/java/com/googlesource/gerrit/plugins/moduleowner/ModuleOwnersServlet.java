@@ -1,6 +1,7 @@
 package com.googlesource.gerrit.plugins.moduleowner;
 
 import com.google.common.collect.Ordering;
+import com.google.common.html.HtmlEscapers;
 import com.google.gerrit.extensions.annotations.PluginCanonicalWebUrl;
 import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.reviewdb.client.Account;
@@ -29,14 +30,17 @@ class ModuleOwnersServlet extends HttpServlet {
 
     private final Provider<CurrentUser> userProvider;
     private final ModuleOwnerConfigCache configCache;
+    private final ModuleOwnerEvaluator evaluator;
 
     @Inject
     public ModuleOwnersServlet(@PluginName String pluginName,
                                @PluginCanonicalWebUrl String url,
                                Provider<CurrentUser> userProvider,
-                               ModuleOwnerConfigCache configCache) {
+                               ModuleOwnerConfigCache configCache,
+                               ModuleOwnerEvaluator evaluator) {
         this.userProvider = userProvider;
         this.configCache = configCache;
+        this.evaluator = evaluator;
 
         log.debug(String.format("'%s' at url %s", pluginName, url));
     }
@@ -87,6 +91,16 @@ class ModuleOwnersServlet extends HttpServlet {
             }
             sb.append("</ul>\n");
         }
+        if (!config.getUnresolvedOwners().isEmpty()) {
+            sb.append("<h3>Unresolved</h3>");
+            sb.append("<ul>");
+            for (String owner : config.getUnresolvedOwners()) {
+                sb.append("<li>");
+                sb.append(HtmlEscapers.htmlEscaper().escape(owner));
+                sb.append("</li>");
+            }
+            sb.append("</ul>\n");
+        }
         return sb.toString();
     }
 
@@ -98,7 +112,7 @@ class ModuleOwnersServlet extends HttpServlet {
                 return o1.getKey().getFullName()
                         .compareToIgnoreCase(o2.getKey().getFullName());
             }
-        }).immutableSortedCopy(config.getPatternMap().entrySet());
+        }).immutableSortedCopy(evaluator.getPatternMap(config).entrySet());
     }
 
     private boolean canView() {
@@ -0,0 +1,83 @@
+package com.googlesource.gerrit.plugins.moduleowner;
+
+import com.google.common.base.MoreObjects;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.AccountGroup;
+import com.googlesource.gerrit.plugins.moduleowner.ModuleOwnerConfig.Key;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Compiled ownership of a single account: the set of patterns owned by the
+ * account directly or through one of its groups.
+ *
+ * As a {@link OwnershipMatcher.Visitor} it stops the scan of a path at the
+ * first owned pattern. Checking a path against globs and {@code linear}
+ * regexes does not allocate; {@code java} regexes need a new matcher for
+ * each test.
+ */
+final class OwnerPredicate implements OwnershipMatcher.Visitor {
+    private final Account.Id user;
+    private final Set<AccountGroup.UUID> groups;
+    private final BitSet patterns;
+
+    OwnerPredicate(Account.Id user, Set<AccountGroup.UUID> groups,
+                   OwnershipMatcher matcher) {
+        this.user = user;
+        this.groups = groups == null ? Collections.<AccountGroup.UUID>emptySet() : groups;
+        this.patterns = new BitSet(matcher.size());
+
+        matcher.addPatterns(Key.user(user), patterns);
+        for (AccountGroup.UUID group : this.groups) {
+            matcher.addPatterns(Key.group(group), patterns);
+        }
+    }
+
+    /**
+     * @param groups current internal groups of the account, including those
+     *        it is a member of through included groups
+     * @return true if the predicate was compiled for these groups, false if
+     *         the group membership changed since
+     */
+    boolean isCurrent(Set<AccountGroup.UUID> groups) {
+        if (groups == null) {
+            return this.groups.isEmpty();
+        }
+        return this.groups == groups || this.groups.equals(groups);
+    }
+
+    Account.Id getUser() {
+        return user;
+    }
+
+    boolean ownsAnyPattern() {
+        return !patterns.isEmpty();
+    }
+
+    boolean owns(int pattern) {
+        return patterns.get(pattern);
+    }
+
+    /**
+     * @param matches indices of the patterns matching a path
+     * @return true if the account owns one of the patterns
+     */
+    boolean ownsAny(BitSet matches) {
+        return patterns.intersects(matches);
+    }
+
+    @Override
+    public boolean visit(int pattern) {
+        return !patterns.get(pattern);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("user", user)
+                .add("patterns", patterns)
+                .toString();
+    }
+}
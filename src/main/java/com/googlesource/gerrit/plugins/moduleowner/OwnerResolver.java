@@ -0,0 +1,209 @@
+package com.googlesource.gerrit.plugins.moduleowner;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.AccountGroup;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.account.AccountCache;
+import com.google.gerrit.server.account.AccountResolver;
+import com.google.gerrit.server.account.AccountState;
+import com.google.gerrit.server.account.GroupCache;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gwtorm.server.OrmException;
+import com.google.gwtorm.server.SchemaFactory;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Resolves the user and group names of a module owner config in one batch.
+ *
+ * Names are looked up in the account and group caches in parallel on a
+ * small plugin queue, sized with {@code plugin.moduleowner.resolverThreads}.
+ * Users which are not known by user name are then resolved by name or email,
+ * all within a single ReviewDb session.
+ */
+@Singleton
+class OwnerResolver implements LifecycleListener {
+    private static final Logger log = LoggerFactory.getLogger(OwnerResolver.class);
+
+    private static final String CONFIG_RESOLVER_THREADS = "resolverThreads";
+    private static final int DEFAULT_RESOLVER_THREADS = 2;
+    private static final String CONFIG_USER_PREFIX = "user ";
+    private static final String CONFIG_GROUP_PREFIX = "group ";
+
+    private final AccountCache accountCache;
+    private final AccountResolver accountResolver;
+    private final GroupCache groupCache;
+    private final SchemaFactory<ReviewDb> schemaFactory;
+    private final WorkQueue workQueue;
+    private final int threads;
+
+    private volatile WorkQueue.Executor executor;
+
+    @Inject
+    OwnerResolver(AccountCache accountCache,
+                  AccountResolver accountResolver,
+                  GroupCache groupCache,
+                  SchemaFactory<ReviewDb> schemaFactory,
+                  WorkQueue workQueue,
+                  PluginConfigFactory configFactory) {
+        this.accountCache = accountCache;
+        this.accountResolver = accountResolver;
+        this.groupCache = groupCache;
+        this.schemaFactory = schemaFactory;
+        this.workQueue = workQueue;
+        this.threads = configFactory.getFromGerritConfig(ModuleOwnerConfig.PLUGIN_NAME)
+                .getInt(CONFIG_RESOLVER_THREADS, DEFAULT_RESOLVER_THREADS);
+    }
+
+    @Override
+    public void start() {
+        if (threads > 1) {
+            executor = workQueue.createQueue(threads, "ModuleOwner-Resolver");
+        }
+    }
+
+    @Override
+    public void stop() {
+        WorkQueue.Executor e = executor;
+        executor = null;
+        if (e != null) {
+            e.unregisterWorkQueue();
+            e.shutdownNow();
+        }
+    }
+
+    /**
+     * @param usernames user names, full names or emails of the config
+     * @param groupnames group names of the config
+     * @return accounts and groups found, and the names that could not be resolved
+     */
+    Result resolve(Collection<String> usernames, Collection<String> groupnames) {
+        Map<String, Future<AccountState>> userLookups = Maps.newLinkedHashMap();
+        for (final String name : usernames) {
+            userLookups.put(name, submit(new Callable<AccountState>() {
+                @Override
+                public AccountState call() {
+                    return accountCache.getByUsername(name);
+                }
+            }));
+        }
+        Map<String, Future<AccountGroup>> groupLookups = Maps.newLinkedHashMap();
+        for (final String name : groupnames) {
+            groupLookups.put(name, submit(new Callable<AccountGroup>() {
+                @Override
+                public AccountGroup call() {
+                    return groupCache.get(new AccountGroup.NameKey(name));
+                }
+            }));
+        }
+
+        ImmutableMap.Builder<String, Account.Id> accounts = ImmutableMap.builder();
+        List<String> byNameOrEmail = Lists.newArrayList();
+        for (Map.Entry<String, Future<AccountState>> lookup : userLookups.entrySet()) {
+            AccountState state = get(lookup.getKey(), lookup.getValue());
+            if (state != null && state.getAccount() != null) {
+                accounts.put(lookup.getKey(), state.getAccount().getId());
+            } else {
+                byNameOrEmail.add(lookup.getKey());
+            }
+        }
+
+        ImmutableList.Builder<String> unresolved = ImmutableList.builder();
+        if (!byNameOrEmail.isEmpty()) {
+            try (ReviewDb db = schemaFactory.open()) {
+                for (String name : byNameOrEmail) {
+                    Account account = find(db, name);
+                    if (account != null) {
+                        accounts.put(name, account.getId());
+                    } else {
+                        unresolved.add(CONFIG_USER_PREFIX + name);
+                    }
+                }
+            } catch (OrmException e) {
+                log.error("Cannot open ReviewDb to resolve users {}", byNameOrEmail, e);
+                for (String name : byNameOrEmail) {
+                    unresolved.add(CONFIG_USER_PREFIX + name);
+                }
+            }
+        }
+
+        ImmutableMap.Builder<String, AccountGroup.UUID> groups = ImmutableMap.builder();
+        for (Map.Entry<String, Future<AccountGroup>> lookup : groupLookups.entrySet()) {
+            AccountGroup group = get(lookup.getKey(), lookup.getValue());
+            if (group != null) {
+                groups.put(lookup.getKey(), group.getGroupUUID());
+            } else {
+                unresolved.add(CONFIG_GROUP_PREFIX + lookup.getKey());
+            }
+        }
+        return new Result(accounts.build(), groups.build(), unresolved.build());
+    }
+
+    private Account find(ReviewDb db, String name) {
+        try {
+            return accountResolver.find(db, name);
+        } catch (OrmException e) {
+            log.error("Exception processing user {}", name, e);
+            return null;
+        }
+    }
+
+    private <T> Future<T> submit(Callable<T> lookup) {
+        WorkQueue.Executor e = executor;
+        if (e != null) {
+            try {
+                return e.submit(lookup);
+            } catch (RejectedExecutionException ignored) {
+                // plugin is stopping, look up in the calling thread
+            }
+        }
+        try {
+            return Futures.immediateFuture(lookup.call());
+        } catch (Exception ex) {
+            return Futures.immediateFailedFuture(ex);
+        }
+    }
+
+    private static <T> T get(String name, Future<T> lookup) {
+        try {
+            return lookup.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while resolving {}", name);
+        } catch (ExecutionException e) {
+            log.error("Exception resolving {}", name, e.getCause());
+        }
+        return null;
+    }
+
+    static final class Result {
+        final Map<String, Account.Id> accounts;
+        final Map<String, AccountGroup.UUID> groups;
+        final List<String> unresolved;
+
+        private Result(Map<String, Account.Id> accounts,
+                       Map<String, AccountGroup.UUID> groups,
+                       List<String> unresolved) {
+            this.accounts = accounts;
+            this.groups = groups;
+            this.unresolved = unresolved;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.googlesource.gerrit.plugins.moduleowner;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.AccountGroup;
+import com.googlesource.gerrit.plugins.moduleowner.ModuleOwnerConfig.Key;
+import org.eclipse.jgit.lib.Config;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolved ownership of a module owner config: the path patterns of each
+ * user and group, and the users and groups that could not be resolved.
+ *
+ * Instances are stored in the persistent {@code ownership} cache, keyed by
+ * the hash of the effective config, until they expire. The compiled matcher
+ * is not serialized but built on first use.
+ */
+final class OwnershipData implements Serializable {
+    private static final long serialVersionUID = 2L;
+
+    /**
+     * Shares equal pattern strings between the configs of all projects.
+     */
+    private static final Interner<String> PATTERNS = Interners.newWeakInterner();
+
+    private final ImmutableMap<Key, ImmutableList<String>> ownerPatterns;
+    private final ImmutableList<String> unresolved;
+    private final long expiresAt;
+
+    private static final int MAX_OWNER_PREDICATES = 1024;
+
+    private transient OwnershipMatcher matcher;
+    private transient RegexEngine engine;
+
+    /**
+     * Owner predicates of each matcher built for this ownership, by identity
+     * of the matcher; snapshots keep using the matcher they were built with.
+     */
+    private transient Cache<OwnershipMatcher, Cache<Account.Id, OwnerPredicate>> ownerPredicates;
+
+    /**
+     * @param ownerPatterns path patterns of each user and group, sorted from
+     *        the longest to the shortest; duplicates are dropped
+     * @param unresolved users and groups that could not be resolved
+     * @param expiresAt time in milliseconds after which the users and groups
+     *        must be resolved again
+     */
+    OwnershipData(Map<Key, List<String>> ownerPatterns, List<String> unresolved,
+                  long expiresAt) {
+        ImmutableMap.Builder<Key, ImmutableList<String>> b = ImmutableMap.builder();
+        for (Map.Entry<Key, List<String>> entry : ownerPatterns.entrySet()) {
+            Set<String> patterns = Sets.newLinkedHashSet();
+            for (String pattern : entry.getValue()) {
+                patterns.add(PATTERNS.intern(pattern));
+            }
+            b.put(entry.getKey(), ImmutableList.copyOf(patterns));
+        }
+        this.ownerPatterns = b.build();
+        this.unresolved = ImmutableList.copyOf(unresolved);
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * @param config effective module owner config, including inherited values
+     * @return key of the config in the {@code ownership} cache
+     */
+    static String key(Config config) {
+        return Hashing.sha256().hashString(config.toText(), StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * Interns the patterns of ownership read from the persistent cache.
+     */
+    private Object readResolve() {
+        return new OwnershipData(Collections.<Key, List<String>>unmodifiableMap(ownerPatterns),
+                                 unresolved, expiresAt);
+    }
+
+    Map<Key, ImmutableList<String>> getOwnerPatterns() {
+        return ownerPatterns;
+    }
+
+    /**
+     * @return users owning patterns directly, not through a group
+     */
+    List<Account.Id> getUsers() {
+        List<Account.Id> users = Lists.newArrayList();
+        for (Key key : ownerPatterns.keySet()) {
+            if (key.isUser()) {
+                users.add(key.user);
+            }
+        }
+        return users;
+    }
+
+    /**
+     * @return true if the users and groups were resolved too long ago, and
+     *         may have been renamed, deleted or reassigned since
+     */
+    boolean isExpired() {
+        return System.currentTimeMillis() > expiresAt;
+    }
+
+    List<String> getUnresolved() {
+        return unresolved;
+    }
+
+    /**
+     * @param engine engine to compile the regex patterns with
+     * @return matcher of all patterns, built once per engine
+     */
+    synchronized OwnershipMatcher getMatcher(RegexEngine engine) {
+        if (matcher == null || this.engine != engine) {
+            Map<String, Set<Key>> patternToId = Maps.newHashMap();
+            for (Map.Entry<Key, ImmutableList<String>> entry : ownerPatterns.entrySet()) {
+                for (String p : entry.getValue()) {
+                    Set<Key> keys = patternToId.get(p);
+                    if (keys == null) {
+                        patternToId.put(p, Sets.newHashSet(entry.getKey()));
+                    } else {
+                        keys.add(entry.getKey());
+                    }
+                }
+            }
+            List<String> allPatterns = Lists.newArrayList(patternToId.keySet());
+            ModuleOwnerConfig.sortPatterns(allPatterns);
+            matcher = new OwnershipMatcher(allPatterns, patternToId, engine);
+            this.engine = engine;
+        }
+        return matcher;
+    }
+
+    /**
+     * Returns the compiled ownership of a user for a matcher of this
+     * ownership. Predicates are shared by all snapshots using the matcher
+     * and recompiled when the user's group membership changes.
+     *
+     * @param matcher matcher of the snapshot, built by {@link #getMatcher}
+     * @param user account to get the ownership of
+     * @param groups current internal groups of the account, including those
+     *        it is a member of through included groups; may be null
+     * @return compiled ownership of the user
+     */
+    OwnerPredicate getOwnerPredicate(OwnershipMatcher matcher, Account.Id user,
+                                     Set<AccountGroup.UUID> groups) {
+        Cache<Account.Id, OwnerPredicate> predicates;
+        synchronized (this) {
+            if (ownerPredicates == null) {
+                ownerPredicates = CacheBuilder.newBuilder().weakKeys().build();
+            }
+            predicates = ownerPredicates.getIfPresent(matcher);
+            if (predicates == null) {
+                predicates = CacheBuilder.newBuilder().maximumSize(MAX_OWNER_PREDICATES).build();
+                ownerPredicates.put(matcher, predicates);
+            }
+        }
+        OwnerPredicate owner = predicates.getIfPresent(user);
+        if (owner == null || !owner.isCurrent(groups)) {
+            owner = new OwnerPredicate(user, groups, matcher);
+            predicates.put(user, owner);
+        }
+        return owner;
+    }
+}
@@ -0,0 +1,184 @@
+package com.googlesource.gerrit.plugins.moduleowner;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.googlesource.gerrit.plugins.moduleowner.ModuleOwnerConfig.Key;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Compiled form of all path patterns of a {@link ModuleOwnerConfig}.
+ *
+ * The patterns are compiled once when the config snapshot is built, and each
+ * path is then checked in a single scan which reports every matching pattern
+ * together with the keys (users and groups) owning it. Only the patterns whose
+ * literal directory prefix is an ancestor of the path are tested; see
+ * {@link PathPrefixTrie}.
+ */
+final class OwnershipMatcher {
+
+    /**
+     * Receives the patterns matching a path, in pattern order.
+     */
+    interface Visitor {
+        /**
+         * @param pattern index of the matching pattern
+         * @return true to continue the scan, false to stop it
+         */
+        boolean visit(int pattern);
+    }
+
+    enum SubtreeOwnership {
+        OWNED,
+        NOT_OWNED,
+        UNDECIDED
+    }
+
+    private final String[] patterns;
+    private final PathPattern[] compiled;
+    private final Set<Key>[] owners;
+    private final String[] subtreePrefixes;
+    private final Map<Key, BitSet> keyToPatterns = Maps.newHashMap();
+    private final PathPrefixTrie trie = new PathPrefixTrie();
+    private final Map<String, String> invalidPatterns = Maps.newLinkedHashMap();
+
+    @SuppressWarnings("unchecked")
+    OwnershipMatcher(List<String> sortedPatterns, Map<String, Set<Key>> patternToId,
+                     RegexEngine engine) {
+        int size = sortedPatterns.size();
+        patterns = sortedPatterns.toArray(new String[size]);
+        compiled = new PathPattern[size];
+        owners = new Set[size];
+        subtreePrefixes = new String[size];
+        for (int i = 0; i < size; i++) {
+            try {
+                compiled[i] = compile(patterns[i], engine);
+            } catch (PatternSyntaxException e) {
+                // an invalid or unsupported pattern never matches
+                invalidPatterns.put(patterns[i], e.getDescription());
+            }
+            owners[i] = ImmutableSet.copyOf(patternToId.get(patterns[i]));
+            String prefix = literalDirectoryPrefix(patterns[i]);
+            trie.add(prefix, i);
+            if (compiled[i] != null && isSubtreePattern(patterns[i], prefix)) {
+                subtreePrefixes[i] = prefix;
+            }
+            for (Key key : owners[i]) {
+                BitSet keyPatterns = keyToPatterns.get(key);
+                if (keyPatterns == null) {
+                    keyPatterns = new BitSet(size);
+                    keyToPatterns.put(key, keyPatterns);
+                }
+                keyPatterns.set(i);
+            }
+        }
+    }
+
+    private static PathPattern compile(String pattern, RegexEngine engine) {
+        if (GlobPattern.isGlob(pattern)) {
+            return GlobPattern.compile(pattern.substring(GlobPattern.PREFIX.length()));
+        }
+        return engine.compile(pattern);
+    }
+
+    private static String literalDirectoryPrefix(String pattern) {
+        if (GlobPattern.isGlob(pattern)) {
+            return GlobPattern.literalDirectoryPrefix(
+                    pattern.substring(GlobPattern.PREFIX.length()));
+        }
+        return PathPrefixTrie.literalDirectoryPrefix(pattern);
+    }
+
+    /**
+     * @return true if the pattern matches every path below its directory prefix
+     */
+    private static boolean isSubtreePattern(String pattern, String prefix) {
+        if (GlobPattern.isGlob(pattern)) {
+            return pattern.equals(GlobPattern.PREFIX + prefix + GlobPattern.ANY_PATH);
+        }
+        return pattern.equals(prefix + ".*");
+    }
+
+    /**
+     * @return patterns which could not be compiled, with the reason
+     */
+    Map<String, String> getInvalidPatterns() {
+        return invalidPatterns;
+    }
+
+    int size() {
+        return patterns.length;
+    }
+
+    String getPattern(int pattern) {
+        return patterns[pattern];
+    }
+
+    Set<Key> getOwners(int pattern) {
+        return owners[pattern];
+    }
+
+    /**
+     * Adds the patterns owned by a key to a set of pattern indices.
+     *
+     * @param key user or group
+     * @param patterns set to add the pattern indices to
+     * @return true if the key owns any pattern, false otherwise
+     */
+    boolean addPatterns(Key key, BitSet patterns) {
+        BitSet keyPatterns = keyToPatterns.get(key);
+        if (keyPatterns == null) {
+            return false;
+        }
+        patterns.or(keyPatterns);
+        return true;
+    }
+
+    /**
+     * Decides whether a user owns every path below a directory, none of
+     * them, or whether the paths have to be checked one by one.
+     *
+     * @param directory directory path, without trailing '/'
+     * @param owner compiled ownership of the user
+     * @return ownership of the whole directory
+     */
+    SubtreeOwnership getSubtreeOwnership(String directory, OwnerPredicate owner) {
+        boolean candidate = false;
+        PathPrefixTrie.Node node = trie.find(directory, true);
+        for (int i = PathPrefixTrie.next(node, -1); i >= 0; i = PathPrefixTrie.next(node, i)) {
+            if (owner.owns(i)) {
+                if (subtreePrefixes[i] != null) {
+                    // e.g. "dir/.*" for "dir/sub"
+                    return SubtreeOwnership.OWNED;
+                }
+                candidate = true;
+            }
+        }
+        if (candidate || !trie.visitBelow(directory, owner)) {
+            return SubtreeOwnership.UNDECIDED;
+        }
+        return SubtreeOwnership.NOT_OWNED;
+    }
+
+    /**
+     * Reports every pattern matching the path to the visitor.
+     *
+     * @param path file path to check
+     * @param visitor receiver of the matching patterns
+     * @return false if the visitor stopped the scan, true otherwise
+     */
+    boolean match(String path, Visitor visitor) {
+        PathPrefixTrie.Node node = trie.find(path, false);
+        for (int i = PathPrefixTrie.next(node, -1); i >= 0; i = PathPrefixTrie.next(node, i)) {
+            if (compiled[i] != null && compiled[i].matches(path)
+                    && !visitor.visit(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
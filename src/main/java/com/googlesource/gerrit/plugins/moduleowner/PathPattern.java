@@ -0,0 +1,13 @@
+package com.googlesource.gerrit.plugins.moduleowner;
+
+/**
+ * Compiled path pattern of a module owner config.
+ */
+interface PathPattern {
+
+    /**
+     * @param path file path relative to the repository root
+     * @return true if the pattern matches the whole path, false otherwise
+     */
+    boolean matches(String path);
+}
@@ -0,0 +1,258 @@
+package com.googlesource.gerrit.plugins.moduleowner;
+
+import java.util.Arrays;
+
+/**
+ * Path-segment trie of the literal directory prefixes of the owner patterns.
+ *
+ * Each pattern is stored under the directory it is confined to, e.g.
+ * {@code core/net/.*} under {@code core/net/}. Patterns without a literal
+ * directory prefix are stored at the root and are candidates for every path.
+ *
+ * Looking up a path compares its segments in place and walks the candidates
+ * with a cursor, so it does not allocate.
+ */
+final class PathPrefixTrie {
+    private static final int[] EMPTY = new int[0];
+
+    private final Node root = new Node(null);
+
+    /**
+     * Adds a pattern under a directory prefix.
+     *
+     * @param prefix directory prefix ending with '/', or the empty string
+     * @param pattern index of the pattern
+     */
+    void add(String prefix, int pattern) {
+        Node node = root;
+        int start = 0;
+        int end;
+        while ((end = prefix.indexOf('/', start)) >= 0) {
+            Node child = node.get(prefix, start, end);
+            if (child == null) {
+                child = node.put(prefix.substring(start, end));
+            }
+            node = child;
+            start = end + 1;
+        }
+        node.add(pattern);
+    }
+
+    /**
+     * Returns the deepest node of the directories of a path; its patterns
+     * and those of its ancestors are the candidates for the path, see
+     * {@link #next}.
+     *
+     * @param path file path, or directory path without trailing '/'
+     * @param directory true if the last segment of the path is a directory
+     * @return deepest node on the path, the root if there is none
+     */
+    Node find(String path, boolean directory) {
+        Node node = root;
+        int start = 0;
+        while (start <= path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                if (!directory) {
+                    break;
+                }
+                end = path.length();
+            }
+            Node child = node.get(path, start, end);
+            if (child == null) {
+                break;
+            }
+            node = child;
+            start = end + 1;
+        }
+        return node;
+    }
+
+    /**
+     * Iterates the candidates of a path in ascending order, e.g.
+     * {@code for (int i = next(node, -1); i >= 0; i = next(node, i))}.
+     *
+     * @param node node returned by {@link #find}
+     * @param last previous candidate, -1 for the first one
+     * @return the smallest pattern index above {@code last} stored at the
+     *         node or one of its ancestors, -1 if there is none
+     */
+    static int next(Node node, int last) {
+        int next = -1;
+        for (Node n = node; n != null; n = n.parent) {
+            int i = n.firstAbove(last);
+            if (i >= 0 && (next < 0 || i < next)) {
+                next = i;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Reports the patterns stored at or below a directory to the visitor.
+     *
+     * @param directory directory path, without trailing '/'
+     * @param visitor receiver of the pattern indices
+     * @return false if the visitor stopped the scan, true otherwise
+     */
+    boolean visitBelow(String directory, OwnershipMatcher.Visitor visitor) {
+        Node node = root;
+        int start = 0;
+        while (node != null && start <= directory.length()) {
+            int end = directory.indexOf('/', start);
+            if (end < 0) {
+                end = directory.length();
+            }
+            node = node.get(directory, start, end);
+            start = end + 1;
+        }
+        return node == null || node.visit(visitor);
+    }
+
+    /**
+     * Extracts the literal directory prefix of a regular expression, i.e. the
+     * longest leading part up to a '/' that every matching path must start with.
+     *
+     * @param regex Java regular expression
+     * @return directory prefix ending with '/', or the empty string if there is none
+     */
+    static String literalDirectoryPrefix(String regex) {
+        if (regex.indexOf('|') >= 0) {
+            // top level alternation could bypass the prefix
+            return "";
+        }
+        StringBuilder literal = new StringBuilder();
+        int i = regex.startsWith("^") ? 1 : 0;
+        for (; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\' && i + 1 < regex.length()
+                    && !Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                // escaped punctuation is a literal
+                literal.append(regex.charAt(++i));
+            } else if (c == '*' || c == '+' || c == '?' || c == '{') {
+                // the quantifier applies to the previous character
+                literal.setLength(Math.max(0, literal.length() - 1));
+                break;
+            } else if (c == '\\' || c == '.' || c == '[' || c == '(' || c == ')'
+                    || c == '^' || c == '$') {
+                break;
+            } else {
+                literal.append(c);
+            }
+        }
+        int slash = literal.lastIndexOf("/");
+        return slash < 0 ? "" : literal.substring(0, slash + 1);
+    }
+
+    /**
+     * Directory of the trie, with its children in an open addressing table
+     * which is probed with a segment of a path rather than a substring.
+     */
+    static final class Node {
+        private static final String[] NO_NAMES = new String[0];
+        private static final Node[] NO_NODES = new Node[0];
+
+        final Node parent;
+        private String[] names = NO_NAMES;
+        private Node[] children = NO_NODES;
+        private int childCount;
+        private int[] patterns = EMPTY;
+        private int size;
+
+        Node(Node parent) {
+            this.parent = parent;
+        }
+
+        /**
+         * @return the child named {@code path[start, end)}, null if there
+         *         is none
+         */
+        Node get(String path, int start, int end) {
+            if (childCount == 0) {
+                return null;
+            }
+            int length = end - start;
+            int mask = names.length - 1;
+            for (int i = hash(path, start, end) & mask; names[i] != null; i = (i + 1) & mask) {
+                String name = names[i];
+                if (name.length() == length && path.regionMatches(start, name, 0, length)) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node put(String name) {
+            if (2 * (childCount + 1) > names.length) {
+                String[] oldNames = names;
+                Node[] oldChildren = children;
+                names = new String[Math.max(4, 2 * oldNames.length)];
+                children = new Node[names.length];
+                for (int i = 0; i < oldNames.length; i++) {
+                    if (oldNames[i] != null) {
+                        insert(oldNames[i], oldChildren[i]);
+                    }
+                }
+            }
+            Node child = new Node(this);
+            insert(name, child);
+            childCount++;
+            return child;
+        }
+
+        private void insert(String name, Node child) {
+            int mask = names.length - 1;
+            int i = hash(name, 0, name.length()) & mask;
+            while (names[i] != null) {
+                i = (i + 1) & mask;
+            }
+            names[i] = name;
+            children[i] = child;
+        }
+
+        /**
+         * Hash of {@code s[start, end)}, equal to the hash of the substring
+         * and spread over the low bits.
+         */
+        private static int hash(String s, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + s.charAt(i);
+            }
+            return h ^ (h >>> 16);
+        }
+
+        /**
+         * @return the smallest pattern of this node above {@code last}, -1
+         *         if there is none
+         */
+        int firstAbove(int last) {
+            int i = Arrays.binarySearch(patterns, 0, size, last + 1);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            return i < size ? patterns[i] : -1;
+        }
+
+        boolean visit(OwnershipMatcher.Visitor visitor) {
+            for (int i = 0; i < size; i++) {
+                if (!visitor.visit(patterns[i])) {
+                    return false;
+                }
+            }
+            for (Node child : children) {
+                if (child != null && !child.visit(visitor)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void add(int pattern) {
+            if (size == patterns.length) {
+                patterns = Arrays.copyOf(patterns, Math.max(4, size * 2));
+            }
+            patterns[size++] = pattern;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.googlesource.gerrit.plugins.moduleowner;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Engines available to compile the regex path patterns of a module owner
+ * config, selected with {@code plugin.moduleowner.regexEngine} in
+ * {@code gerrit.config}.
+ */
+enum RegexEngine {
+    /**
+     * {@link java.util.regex}, supports the full Java syntax but may
+     * backtrack exponentially on some patterns, and allocates a matcher
+     * for each path tested.
+     */
+    JAVA {
+        @Override
+        PathPattern compile(String regex) {
+            final Pattern pattern = Pattern.compile(regex);
+            return new PathPattern() {
+                @Override
+                public boolean matches(String path) {
+                    return pattern.matcher(path).matches();
+                }
+
+                @Override
+                public String toString() {
+                    return pattern.pattern();
+                }
+            };
+        }
+    },
+
+    /**
+     * {@link LinearRegex}, matches in time linear in the length of the path
+     * and without allocating, but rejects constructs such as backreferences
+     * and lookaround.
+     */
+    LINEAR {
+        @Override
+        PathPattern compile(String regex) {
+            return LinearRegex.compile(regex);
+        }
+    };
+
+    /**
+     * @param regex path pattern from the config
+     * @return compiled pattern
+     * @throws PatternSyntaxException if the pattern is invalid or not
+     *         supported by this engine
+     */
+    abstract PathPattern compile(String regex);
+}
@@ -0,0 +1,179 @@
+package com.googlesource.gerrit.plugins.moduleowner;
+
+import com.google.common.util.concurrent.Striped;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.IdentifiedUser;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.util.RequestContext;
+import com.google.gerrit.server.util.ThreadLocalRequestContext;
+import com.google.gwtorm.server.OrmException;
+import com.google.gwtorm.server.SchemaFactory;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.ProvisionException;
+import com.google.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Runs reviewer assignment on a queue sized with
+ * {@code plugin.moduleowner.reviewerThreads}; with {@code 0} or less,
+ * reviewers are assigned by the thread handling the event.
+ *
+ * Each task runs in its own request context, as the owner of the change,
+ * with a ReviewDb opened on first use and closed when the task ends. Tasks
+ * of the same change do not run at the same time.
+ */
+@Singleton
+class ReviewerQueue implements LifecycleListener {
+    private static final Logger log = LoggerFactory.getLogger(ReviewerQueue.class);
+
+    private static final String CONFIG_REVIEWER_THREADS = "reviewerThreads";
+    private static final int DEFAULT_REVIEWER_THREADS = 2;
+    private static final int CHANGE_LOCKS = 64;
+
+    private final WorkQueue workQueue;
+    private final ThreadLocalRequestContext tl;
+    private final IdentifiedUser.GenericFactory userFactory;
+    private final SchemaFactory<ReviewDb> schemaFactory;
+    private final int threads;
+    private final Striped<Lock> changeLocks = Striped.lock(CHANGE_LOCKS);
+
+    private volatile WorkQueue.Executor executor;
+
+    @Inject
+    ReviewerQueue(WorkQueue workQueue,
+                  ThreadLocalRequestContext tl,
+                  IdentifiedUser.GenericFactory userFactory,
+                  SchemaFactory<ReviewDb> schemaFactory,
+                  PluginConfigFactory configFactory) {
+        this.workQueue = workQueue;
+        this.tl = tl;
+        this.userFactory = userFactory;
+        this.schemaFactory = schemaFactory;
+        this.threads = configFactory.getFromGerritConfig(ModuleOwnerConfig.PLUGIN_NAME)
+                .getInt(CONFIG_REVIEWER_THREADS, DEFAULT_REVIEWER_THREADS);
+    }
+
+    @Override
+    public void start() {
+        if (threads > 0) {
+            executor = workQueue.createQueue(threads, "ModuleOwner-Reviewers");
+        }
+    }
+
+    @Override
+    public void stop() {
+        WorkQueue.Executor e = executor;
+        executor = null;
+        if (e != null) {
+            e.unregisterWorkQueue();
+            e.shutdownNow();
+        }
+    }
+
+    /**
+     * @param task task to run
+     * @param change change the task belongs to; the task runs as its owner,
+     *        and not at the same time as other tasks of the change
+     */
+    void submit(Runnable task, Change change) {
+        Runnable scoped = new ScopedTask(task, change);
+        WorkQueue.Executor e = executor;
+        if (e != null) {
+            try {
+                e.execute(scoped);
+                return;
+            } catch (RejectedExecutionException ex) {
+                log.debug("Reviewer queue is shut down, running {} inline", task);
+            }
+        }
+        scoped.run();
+    }
+
+    private class ScopedTask implements Runnable {
+        private final Runnable task;
+        private final Change change;
+
+        ScopedTask(Runnable task, Change change) {
+            this.task = task;
+            this.change = change;
+        }
+
+        @Override
+        public void run() {
+            // tasks of one change, e.g. of two patch sets pushed in a row,
+            // must see the reviewers added by each other
+            Lock lock = changeLocks.get(change.getId());
+            lock.lock();
+            try {
+                TaskContext context = new TaskContext(change.getOwner());
+                RequestContext old = tl.setContext(context);
+                try {
+                    task.run();
+                } finally {
+                    tl.setContext(old);
+                    context.close();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return task.toString();
+        }
+    }
+
+    /**
+     * Request context of one task, owning the ReviewDb it opens.
+     */
+    private class TaskContext implements RequestContext {
+        private final Account.Id user;
+        private ReviewDb db;
+
+        TaskContext(Account.Id user) {
+            this.user = user;
+        }
+
+        @Override
+        public CurrentUser getUser() {
+            return userFactory.create(user);
+        }
+
+        @Override
+        public Provider<ReviewDb> getReviewDbProvider() {
+            return new Provider<ReviewDb>() {
+                @Override
+                public ReviewDb get() {
+                    synchronized (TaskContext.this) {
+                        if (db == null) {
+                            try {
+                                db = schemaFactory.open();
+                            } catch (OrmException e) {
+                                throw new ProvisionException("Cannot open ReviewDb", e);
+                            }
+                        }
+                        return db;
+                    }
+                }
+            };
+        }
+
+        synchronized void close() {
+            if (db != null) {
+                db.close();
+                db = null;
+            }
+        }
+    }
+}